@@ -0,0 +1,77 @@
+package org.apache.camel.component.smev3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Подпись СМЭВ (CryptoPro JCP) требует контейнер ключей, поэтому стоимость хэширования и подписи
+// вложений измеряется на стандартных алгоритмах JCA по той же схеме, что и в Smev3Producer.getAttachments
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AttachmentDigestBenchmark
+{
+    @Param({"4096", "1048576", "67108864"})
+    private int size;
+
+    @Param({"SHA-256"})
+    private String digestAlgorithm;
+
+    @Param({"SHA256withRSA"})
+    private String signatureAlgorithm;
+
+    private byte[] content;
+    private byte[] buffer;
+    private KeyPair keyPair;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        buffer = new byte[64 * 1024];
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        keyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Benchmark
+    public byte[] digest() throws Exception
+    {
+        return MessageDigest.getInstance(digestAlgorithm).digest(content);
+    }
+
+    @Benchmark
+    public byte[] digestInputStream() throws Exception // как при выгрузке по FTP: хэш считается при чтении потока
+    {
+        DigestInputStream digestInputStream = new DigestInputStream(new ByteArrayInputStream(content), MessageDigest.getInstance(digestAlgorithm));
+        try (InputStream inputStream = new BufferedInputStream(digestInputStream))
+        {
+            while(inputStream.read(buffer) > 0);
+        }
+        return digestInputStream.getMessageDigest().digest();
+    }
+
+    @Benchmark
+    public byte[] digestAndSign() throws Exception
+    {
+        byte[] checkSum = MessageDigest.getInstance(digestAlgorithm).digest(content);
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(keyPair.getPrivate());
+        signature.update(checkSum);
+        return signature.sign();
+    }
+}
@@ -0,0 +1,100 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.attachment.Attachment;
+import org.apache.camel.attachment.DefaultAttachment;
+import org.apache.camel.component.smev3.strategy.AttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.FileAttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.HybridAttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.InMemoryAttachmentsStrategy;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.activation.DataHandler;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+public class AttachmentsStrategyBenchmark
+{
+    @Param({"4096", "1048576", "67108864", "524288000"}) // 4 КБ - 500 МБ
+    private int size;
+
+    @Param({"InMemory", "InMemoryDirect", "File", "Hybrid"})
+    private String strategy;
+
+    private CamelContext camelContext;
+    private AttachmentsStrategy attachmentsStrategy;
+    private byte[] block;
+    private byte[] readBuffer;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        camelContext = new DefaultCamelContext();
+        block = new byte[64 * 1024];
+        new Random(42).nextBytes(block);
+        readBuffer = new byte[64 * 1024];
+
+        if("InMemory".equals(strategy))
+            attachmentsStrategy = new InMemoryAttachmentsStrategy();
+        else if("InMemoryDirect".equals(strategy))
+            attachmentsStrategy = new InMemoryAttachmentsStrategy(true);
+        else if("File".equals(strategy))
+            attachmentsStrategy = new FileAttachmentsStrategy(Files.createTempDirectory("smev3-bench").toString(), true);
+        else
+            attachmentsStrategy = new HybridAttachmentsStrategy(Files.createTempDirectory("smev3-bench").toString(), 1024 * 1024, 8 * 1024 * 1024);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public long writeProcessRead(Blackhole blackhole) throws Exception
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        String messageId = UUID.randomUUID().toString();
+        DataHandler dataHandler = attachmentsStrategy.get(exchange, messageId, "attachment", "attachment.bin", "application/octet-stream", null, 0, 1);
+
+        try
+        {
+            try (OutputStream outputStream = dataHandler.getOutputStream())
+            {
+                for(int written = 0; written < size; written += block.length)
+                    outputStream.write(block, 0, Math.min(block.length, size - written));
+            }
+
+            Attachment attachment = new DefaultAttachment(dataHandler);
+            attachmentsStrategy.process(exchange, attachment, dataHandler);
+            blackhole.consume(attachment.getHeader(Smev3Constants.SMEV3_ATTACHMENT_LENGTH));
+
+            long read = 0;
+            try (InputStream inputStream = dataHandler.getInputStream())
+            {
+                int n;
+                while((n = inputStream.read(readBuffer)) > 0)
+                    read += n;
+            }
+            return read;
+        }
+        finally
+        {
+            attachmentsStrategy.done(dataHandler);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.apache.camel.component.smev3;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkRunner
+{
+    public static void main(String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args)) // стандартные параметры JMH, например фильтр бенчмарков
+                .addProfiler(GCProfiler.class) // gc.alloc.rate, gc.alloc.rate.norm
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,91 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.openjdk.jmh.annotations.*;
+import ru.voskhod.smev.client.api.types.message.system.SMEVMetadata;
+import ru.voskhod.smev.client.api.types.message.system.processing.RequestInformation;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConstantsBenchmark
+{
+    private CamelContext camelContext;
+    private SMEVMetadata smevMetadata;
+    private String envelop;
+    private Exception exception;
+    private final Smev3HeaderFilter minimal = new Smev3HeaderFilter(Smev3HeaderFilter.Profile.Minimal, null, null);
+
+    @Setup
+    public void setup()
+    {
+        camelContext = new DefaultCamelContext();
+
+        String messageId = UUID.randomUUID().toString();
+        smevMetadata = new SMEVMetadata(new SMEVMetadata.MessageIdentity(messageId, messageId, "transaction"), new RequestInformation(messageId, null, "node", false));
+
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 1000; i++)
+            sb.append("<ns:Item>\r\n    <ns:Value>").append(i).append("</ns:Value>\r\n</ns:Item>\r\n");
+        envelop = sb.toString();
+
+        exception = nested(20);
+    }
+
+    private static Exception nested(int depth)
+    {
+        if(depth == 0)
+            return new IllegalStateException("benchmark");
+        try
+        {
+            throw nested(depth - 1);
+        }
+        catch (Exception ex)
+        {
+            return new RuntimeException("level " + depth, ex);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public Exchange fillExchangeHeaders()
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        Smev3Constants.fillExchangeHeaders(exchange, smevMetadata);
+        return exchange;
+    }
+
+    @Benchmark
+    public Exchange fillExchangeHeadersMinimal()
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        Smev3Constants.fillExchangeHeaders(exchange, smevMetadata, minimal);
+        return exchange;
+    }
+
+    @Benchmark
+    public String toLine()
+    {
+        return Smev3Constants.toLine(envelop);
+    }
+
+    @Benchmark
+    public String printException()
+    {
+        return Smev3Constants.printException(exception);
+    }
+}
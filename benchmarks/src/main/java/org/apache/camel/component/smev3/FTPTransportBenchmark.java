@@ -0,0 +1,193 @@
+package org.apache.camel.component.smev3;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.component.smev3.utils.ApacheFTPTransport;
+import org.apache.camel.component.smev3.utils.FTPClientPool;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+import org.openjdk.jmh.annotations.*;
+import ru.voskhod.smev.client.api.services.transport.configuration.LargeAttachmentTransportConfiguration;
+import ru.voskhod.smev.client.api.types.message.attachment.LargeAttachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FTPTransportBenchmark
+{
+    private static final String LOGIN = "smev";
+    private static final String PASSWORD = "smev";
+    private static final int SEGMENTS = 4;
+
+    @Param({"4096", "1048576", "67108864"})
+    private int size;
+
+    private FtpServer server;
+    private Path home;
+    private Path downloads;
+    private FTPClientPool pool;
+    private ApacheFTPTransport transport;
+    private ApacheFTPTransport segmentedTransport;
+    private ExecutorService segmentsExecutor;
+    private LargeAttachment.TransportDetails transportDetails;
+    private LargeAttachment largeAttachment;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        home = Files.createTempDirectory("smev3-ftp");
+        downloads = Files.createTempDirectory("smev3-ftp-downloads");
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        BaseUser user = new BaseUser();
+        user.setName(LOGIN);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(home.toString());
+        user.setAuthorities(Arrays.<Authority>asList(new WritePermission(), new ConcurrentLoginPermission(0, 0)));
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setPort(port);
+        serverFactory.addListener("default", listenerFactory.createListener());
+        serverFactory.setUserManager(new PropertiesUserManagerFactory().createUserManager());
+        serverFactory.getUserManager().save(user);
+        server = serverFactory.createServer();
+        server.start();
+
+        String address = "localhost:" + port;
+        pool = new FTPClientPool(8, 60000, 1000);
+        LargeAttachmentTransportConfiguration config = new LargeAttachmentTransportConfiguration()
+        {
+            public String getAddress()
+            {
+                return address;
+            }
+
+            public String getLogin()
+            {
+                return LOGIN;
+            }
+
+            public String getPass()
+            {
+                return PASSWORD;
+            }
+
+            public int getMaxAttempts()
+            {
+                return 5;
+            }
+
+            public int getTimeout()
+            {
+                return 1000;
+            }
+        };
+        Smev3Metrics metrics = new Smev3Metrics(new SimpleMeterRegistry(), "benchmark", "1.3");
+        transport = new ApacheFTPTransport(config, pool, metrics);
+        segmentsExecutor = Executors.newFixedThreadPool(SEGMENTS);
+        segmentedTransport = new ApacheFTPTransport(config, pool, metrics, SEGMENTS, 0, segmentsExecutor);
+        transportDetails = new LargeAttachment.TransportDetails(LOGIN, PASSWORD);
+
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+
+        UUID uuid = UUID.randomUUID();
+        transport.upload(uuid, "attachment.bin", transportDetails, new ByteArrayInputStream(content));
+        largeAttachment = new LargeAttachment("application/octet-stream", null, null, uuid, null, null, transportDetails, uuid + "/attachment.bin");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        segmentsExecutor.shutdownNow();
+        pool.close();
+        server.stop();
+        delete(home.toFile());
+        delete(downloads.toFile());
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if(files != null)
+            for(File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    @Benchmark
+    public void upload() throws Exception
+    {
+        transport.upload(UUID.randomUUID(), "attachment.bin", transportDetails, new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public void downloadToStream() throws Exception
+    {
+        transport.download(largeAttachment, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void downloadToStreamConcurrent() throws Exception
+    {
+        transport.download(largeAttachment, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void downloadToFile() throws Exception
+    {
+        File file = Files.createTempFile(downloads, "smev3", ".tmp").toFile();
+        try
+        {
+            transport.download(largeAttachment, file);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void downloadToFileSegmented() throws Exception
+    {
+        File file = Files.createTempFile(downloads, "smev3", ".tmp").toFile();
+        try
+        {
+            segmentedTransport.download(largeAttachment, file);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
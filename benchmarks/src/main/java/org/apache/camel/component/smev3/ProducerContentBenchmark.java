@@ -0,0 +1,71 @@
+package org.apache.camel.component.smev3;
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.crypto.util.XMLTransformHelper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProducerContentBenchmark
+{
+    @Param({"10", "1000", "10000"})
+    private int items;
+
+    private String string;
+    private byte[] bytes;
+    private Document document;
+    private Element element;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        StringBuilder sb = new StringBuilder("<req:Request xmlns:req=\"urn://x-artefacts-smev-gov-ru/benchmark/1.0\">");
+        for(int i = 0; i < items; i++)
+            sb.append("<req:Item id=\"").append(i).append("\"><req:Name>Наименование ").append(i).append("</req:Name><req:Value>").append(i * 31).append("</req:Value></req:Item>");
+        sb.append("</req:Request>");
+
+        string = sb.toString();
+        bytes = string.getBytes(StandardCharsets.UTF_8);
+        document = XMLTransformHelper.buildDocumentFromString(string);
+        element = XMLTransformHelper.buildDocumentFromString(string).getDocumentElement();
+    }
+
+    @Benchmark
+    public Element string() throws Exception
+    {
+        return Smev3Producer.getContent(string);
+    }
+
+    @Benchmark
+    public Element bytes() throws Exception
+    {
+        return Smev3Producer.getContent(bytes);
+    }
+
+    @Benchmark
+    public Element inputStream() throws Exception
+    {
+        return Smev3Producer.getContent(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public Element document() throws Exception
+    {
+        return Smev3Producer.getContent(document);
+    }
+
+    @Benchmark
+    public Element element() throws Exception
+    {
+        return Smev3Producer.getContent(element);
+    }
+}
@@ -0,0 +1,158 @@
+package org.apache.camel.component.smev3;
+
+import io.micrometer.core.instrument.Gauge;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
+import org.apache.camel.spi.ExecutorServiceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.client.api.services.template.WSTemplate;
+import ru.voskhod.smev.client.api.types.message.system.SMEVMetadata;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class Smev3AckDispatcher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(Smev3AckDispatcher.class);
+    private static final int BATCH_SIZE = 100;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private final WSTemplate wsTemplate;
+    private final Smev3Metrics metrics;
+    private final int retries;
+    private final int retryDelay;
+    private final BlockingQueue<Ack> queue;
+    private final ExecutorServiceManager executorServiceManager;
+    private final ExecutorService executor;
+    private final Gauge queueGauge;
+    private volatile boolean stopping;
+
+    private static final class Ack
+    {
+        private final SMEVMetadata smevMetadata;
+        private final boolean accepted;
+
+        private Ack(SMEVMetadata smevMetadata, boolean accepted)
+        {
+            this.smevMetadata = smevMetadata;
+            this.accepted = accepted;
+        }
+    }
+
+    Smev3AckDispatcher(Object source, ExecutorServiceManager executorServiceManager, WSTemplate wsTemplate, Smev3Metrics metrics, Smev3Configuration conf)
+    {
+        this.wsTemplate = wsTemplate;
+        this.metrics = metrics;
+        this.retries = conf.getAckRetries();
+        this.retryDelay = conf.getAckRetryDelay();
+        this.queue = new ArrayBlockingQueue<>(conf.getAckQueueSize());
+        this.queueGauge = metrics.ackQueue(queue);
+        this.executorServiceManager = executorServiceManager;
+        this.executor = executorServiceManager.newFixedThreadPool(source, "Smev3Ack", conf.getAckThreads());
+
+        for(int i = 0; i < conf.getAckThreads(); i++)
+            executor.execute(this::run);
+    }
+
+    // Блокирует поток опроса, если очередь заполнена, - количество неподтвержденных сообщений ограничено ackQueueSize
+    void submit(SMEVMetadata smevMetadata, boolean accepted) throws InterruptedException
+    {
+        if(stopping)
+            throw new IllegalStateException("Ack dispatcher is stopped");
+
+        queue.put(new Ack(smevMetadata, accepted));
+    }
+
+    // Новые подтверждения не принимаются, накопленные отправляются (при ackThreads = 1 в порядке поступления)
+    void stop()
+    {
+        stopping = true;
+        executorServiceManager.shutdownGraceful(executor);
+
+        Ack ack;
+        while((ack = queue.poll()) != null)
+        {
+            metrics.ackDropped();
+            LOGGER.error("Ack SMEVMessage dropped on shutdown: SMEVMessageId = {}", getMessageId(ack));
+        }
+        metrics.remove(queueGauge); // после перезапуска регистрируется для новой очереди
+    }
+
+    private void run()
+    {
+        Deque<Ack> batch = new ArrayDeque<>(BATCH_SIZE);
+
+        try
+        {
+            while( ! Thread.currentThread().isInterrupted())
+            {
+                Ack ack = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if(ack == null)
+                {
+                    if(stopping)
+                        break;
+                    continue;
+                }
+
+                batch.add(ack);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+
+                Ack next;
+                while((next = batch.peek()) != null)
+                {
+                    send(next);
+                    batch.poll(); // удаляется после отправки, чтобы при прерывании учесть не отправленные
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            batch.forEach(a -> {
+                metrics.ackDropped();
+                LOGGER.error("Ack SMEVMessage dropped on shutdown: SMEVMessageId = {}", getMessageId(a));
+            });
+        }
+    }
+
+    private void send(Ack ack) throws InterruptedException
+    {
+        for(int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                if(LOGGER.isTraceEnabled())
+                    LOGGER.trace("Ack SMEVMessage: SMEVMessageId = {} Attempt = {}", getMessageId(ack), attempt);
+
+                metrics.ws("ack", () -> { wsTemplate.ack(ack.smevMetadata, ack.accepted); return null; });
+                return;
+            }
+            catch (Exception ex)
+            {
+                if(attempt >= retries)
+                {
+                    metrics.ackDropped();
+                    LOGGER.error("Ack SMEVMessage: SMEVMessageId = {} Attempts = {} Exception = {}",
+                            getMessageId(ack),
+                            attempt + 1,
+                            Smev3Constants.toLine(Smev3Constants.printException(ex)));
+                    return;
+                }
+
+                LOGGER.warn("Ack SMEVMessage: SMEVMessageId = {} Attempt = {} failure: {}", getMessageId(ack), attempt, ex.getMessage());
+                Thread.sleep(retryDelay * (attempt + 1L));
+            }
+        }
+    }
+
+    private static String getMessageId(Ack ack)
+    {
+        return ack.smevMetadata.getMessageIdentity() != null ? ack.smevMetadata.getMessageIdentity().getMessageId() : null;
+    }
+}
@@ -0,0 +1,61 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smev3.strategy.AttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.LazyDataSource;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.activation.DataHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Освобождает вложения сообщения (AttachmentsStrategy.done) по завершении exchange. Маршрут может читать вложения
+// после возврата из poll (seda, wireTap, aggregator, асинхронные процессоры), поэтому освобождать их в poll нельзя
+class Smev3AttachmentsRelease extends SynchronizationAdapter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(Smev3AttachmentsRelease.class);
+    private final AttachmentsStrategy attachmentsStrategy;
+    private final List<DataHandler> attachments;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Smev3AttachmentsRelease(AttachmentsStrategy attachmentsStrategy, List<DataHandler> attachments)
+    {
+        this.attachmentsStrategy = attachmentsStrategy;
+        this.attachments = new ArrayList<>(attachments);
+    }
+
+    @Override
+    public void onDone(Exchange exchange)
+    {
+        release();
+    }
+
+    void release()
+    {
+        if( ! released.compareAndSet(false, true))
+            return;
+
+        for(DataHandler dataHandler : attachments)
+        {
+            try
+            {
+                done(attachmentsStrategy, dataHandler);
+            }
+            catch (Exception ex)
+            {
+                LOGGER.warn("Attachment \"{}\" release failure: {}", dataHandler.getName(), ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private static void done(AttachmentsStrategy attachmentsStrategy, DataHandler dataHandler) throws Exception
+    {
+        if(dataHandler.getDataSource() instanceof LazyDataSource)
+            attachmentsStrategy.done(((LazyDataSource) dataHandler.getDataSource()).release());
+        else
+            attachmentsStrategy.done(dataHandler);
+    }
+}
@@ -0,0 +1,102 @@
+package org.apache.camel.component.smev3;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.component.smev3.utils.AttachmentSignatureCache;
+import org.apache.camel.component.smev3.utils.SignerPool;
+import ru.voskhod.smev.client.api.factory.Factory;
+import ru.voskhod.smev.client.api.services.identification.IdentityService;
+import ru.voskhod.smev.client.api.services.signature.Signer;
+import ru.voskhod.smev.client.api.services.template.WSTemplate;
+import ru.voskhod.smev.client.api.signature.impl.SignerFactory;
+import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Signer, WSTemplate и IdentityService создаются один раз на набор настроек и используются всеми такими endpoint компоненты
+class Smev3Client implements AutoCloseable
+{
+    private final List<Object> key;
+    private final WSTemplate wsTemplate;
+    private final IdentityService identityService;
+    private final AttachmentSignatureCache signatureCache;
+    private final SignerPool signerPool;
+    private final List<Meter> meters = new ArrayList<>();
+    private MeterRegistry meterRegistry;
+    private int references;
+
+    Smev3Client(List<Object> key, Smev3Configuration conf) throws SMEVRuntimeException
+    {
+        this.key = key;
+        Signer signer = SignerFactory.getSigner(
+                conf.getSignerConfiguration(),
+                conf.getSignerConfiguration().getCertificateAlias(),
+                conf.getSignerConfiguration().getPrivateKeyAlias(),
+                conf.getSignerConfiguration().getPrivateKeyPassword());
+        identityService = Factory.getIdentityGeneratorInstance(null, conf.getSmevVersion());
+        wsTemplate = Factory.getWsTemplateInstance(
+                signer,
+                Factory.getValidatorInstance(conf.getWSTemplateConfiguration().getValidatorConfig(), conf.getSmevVersion()),
+                Factory.getMessageMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
+                Factory.getMessageTransportInstance(conf.getGeoTemplateConfiguration().getGeoMessageTransportConfiguration(), conf.getSmevVersion()),
+                Factory.getExceptionMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
+                null, // must be null, use laTransport instead
+                conf.getGeoTemplateConfiguration(),
+                conf.getSmevVersion());
+        signerPool = new SignerPool(conf.getSignerConfiguration(), conf.getSignerPoolSize()); // подпись содержимого и вложений producer, signer выше используется только WSTemplate
+        signatureCache = conf.getSignatureCacheSize() > 0 ? new AttachmentSignatureCache(conf.getSignatureCacheSize(), conf.getSignatureCacheTtl()) : null;
+    }
+
+    List<Object> getKey()
+    {
+        return key;
+    }
+
+    WSTemplate getWsTemplate()
+    {
+        return wsTemplate;
+    }
+
+    IdentityService getIdentityService()
+    {
+        return identityService;
+    }
+
+    SignerPool getSignerPool()
+    {
+        return signerPool;
+    }
+
+    AttachmentSignatureCache getSignatureCache() // null, если кэш отключен
+    {
+        return signatureCache;
+    }
+
+    void bindTo(MeterRegistry registry, String... tags)
+    {
+        meterRegistry = registry;
+        meters.addAll(signerPool.bindTo(registry, tags));
+        if(signatureCache != null)
+            meters.addAll(signatureCache.bindTo(registry, tags));
+    }
+
+    int retain()
+    {
+        return ++references;
+    }
+
+    int release()
+    {
+        return --references;
+    }
+
+    @Override
+    public void close()
+    {
+        if(meterRegistry != null) // метрики закрытого клиента не остаются в registry
+            meters.forEach(meterRegistry::remove);
+        meters.clear();
+        signerPool.close();
+    }
+}
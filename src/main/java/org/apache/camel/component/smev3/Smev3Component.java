@@ -1,14 +1,21 @@
 package org.apache.camel.component.smev3;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Endpoint;
+import org.apache.camel.component.smev3.utils.FTPClientPool;
 import org.apache.camel.spi.annotations.Component;
 import org.apache.camel.support.DefaultComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.EnvironmentAware;
 import org.springframework.core.env.Environment;
+import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
 import java.security.Security;
 import ru.CryptoPro.JCP.JCP;
 import ru.CryptoPro.JCP.tools.License;
@@ -18,7 +25,15 @@ import ru.CryptoPro.JCP.pref.ConfigurationException;
 public class Smev3Component extends DefaultComponent implements EnvironmentAware
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(Smev3Component.class);
+    private static final int DEFAULT_FTP_POOL_MAX_PER_HOST = 8;
+    private static final long DEFAULT_FTP_POOL_IDLE_TIMEOUT = 60000;
+    private static final int DEFAULT_FTP_TIMEOUT = 1000;
     private Environment environment;
+    private FTPClientPool ftpClientPool;
+    private ExecutorService attachmentsExecutor;
+    private ExecutorService segmentsExecutor;
+    private MeterRegistry meterRegistry;
+    private final Map<List<Object>, Smev3Client> clients = new HashMap<>();
 
     public Smev3Component()
     {
@@ -46,6 +61,101 @@ public class Smev3Component extends DefaultComponent implements EnvironmentAware
         }
     }
 
+    synchronized Smev3Client acquireClient(Smev3Configuration conf) throws SMEVRuntimeException
+    {
+        List<Object> key = conf.getClientKey();
+        Smev3Client client = clients.get(key);
+        if(client == null)
+        {
+            client = new Smev3Client(key, conf);
+            clients.put(key, client);
+            String[] tags = { "version", conf.getSmevVersion().getValue(), "signer", String.valueOf(conf.getSignerConfiguration().getCertificateAlias()) };
+            client.bindTo(getMeterRegistry(), tags); // метрики удаляются при закрытии клиента в releaseClient
+            LOGGER.debug("Smev3Client created: version = {} clients = {}", conf.getSmevVersion().getValue(), clients.size());
+        }
+        client.retain();
+        return client;
+    }
+
+    synchronized void releaseClient(Smev3Client client)
+    {
+        if(client.release() == 0) // последний consumer/producer с такими настройками остановлен
+        {
+            clients.remove(client.getKey());
+            client.close();
+        }
+    }
+
+    synchronized FTPClientPool getFtpClientPool()
+    {
+        if(ftpClientPool == null)
+            ftpClientPool = new FTPClientPool(
+                    getFtpPoolMaxPerHost(),
+                    environment.getProperty("smev3.large.attachment.transport.pool.idle.timeout", Long.class, DEFAULT_FTP_POOL_IDLE_TIMEOUT),
+                    environment.getProperty("smev3.large.attachment.transport.timeout", Integer.class, DEFAULT_FTP_TIMEOUT));
+
+        return ftpClientPool;
+    }
+
+    synchronized ExecutorService getAttachmentsExecutor()
+    {
+        if(attachmentsExecutor == null) // параллельных загрузок не больше, чем FTP сессий в пуле
+            attachmentsExecutor = getCamelContext().getExecutorServiceManager().newFixedThreadPool(this, "Smev3Attachments", getFtpPoolMaxPerHost());
+
+        return attachmentsExecutor;
+    }
+
+    // Отдельный пул: задачи загрузки вложений ожидают загрузку своих частей
+    synchronized ExecutorService getSegmentsExecutor()
+    {
+        if(segmentsExecutor == null)
+            segmentsExecutor = getCamelContext().getExecutorServiceManager().newFixedThreadPool(this, "Smev3Segments", getFtpPoolMaxPerHost());
+
+        return segmentsExecutor;
+    }
+
+    synchronized MeterRegistry getMeterRegistry()
+    {
+        if(meterRegistry == null)
+        {
+            meterRegistry = getCamelContext().getRegistry().findSingleByType(MeterRegistry.class);
+            if(meterRegistry == null) // без зарегистрированного MeterRegistry метрики доступны через Metrics.globalRegistry
+                meterRegistry = Metrics.globalRegistry;
+        }
+
+        return meterRegistry;
+    }
+
+    private int getFtpPoolMaxPerHost()
+    {
+        return environment.getProperty("smev3.large.attachment.transport.pool.max.per.host", Integer.class, DEFAULT_FTP_POOL_MAX_PER_HOST);
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        synchronized (this)
+        {
+            if(attachmentsExecutor != null)
+            {
+                getCamelContext().getExecutorServiceManager().shutdownGraceful(attachmentsExecutor);
+                attachmentsExecutor = null;
+            }
+            if(segmentsExecutor != null)
+            {
+                getCamelContext().getExecutorServiceManager().shutdownGraceful(segmentsExecutor);
+                segmentsExecutor = null;
+            }
+            if(ftpClientPool != null)
+            {
+                ftpClientPool.close();
+                ftpClientPool = null;
+            }
+        }
+
+        super.doStop();
+    }
+
     @Override
     protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) throws Exception
     {
@@ -2,6 +2,7 @@ package org.apache.camel.component.smev3;
 
 import org.apache.camel.component.smev3.strategy.AttachmentsStrategy;
 import org.apache.camel.component.smev3.strategy.InMemoryAttachmentsStrategy;
+import org.apache.camel.component.smev3.utils.Journal;
 import org.apache.camel.support.DefaultComponent;
 import org.springframework.core.env.Environment;
 import ru.voskhod.smev.client.api.configuration.SMEVVersion;
@@ -22,6 +23,7 @@ import ru.voskhod.smev.client.api.types.message.system.processing.QueryInformati
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -29,7 +31,7 @@ class Smev3Configuration
 {
     public enum Smev3BodyType
     {
-        Content, Envelop, SMEVMessage
+        Content, Envelop, SMEVMessage, Element, Bytes, Stream
     }
 
     public enum Smev3Mode
@@ -43,9 +45,26 @@ class Smev3Configuration
 
 
     private static final int DEFAULT_ERROR_DELAY = 60000;
+    private static final int DEFAULT_TRANSPORT_ERROR_DELAY = 1000;
+    private static final int DEFAULT_PROCESSING_ERROR_DELAY = 5000;
+    private static final double DEFAULT_BACKOFF_JITTER = 0.2;
     private static final int DEFAULT_TIMEOUT_MILLIS = 1000;
     private static final int DEFAULT_RETRIES_COUNT = 5;
     private static final int DEFAULT_LARGE_ATTACHMENT_THRESHOLD = 512 * 1024;
+    private static final int DEFAULT_LARGE_ATTACHMENT_SEGMENTS = 1;
+    private static final long DEFAULT_LARGE_ATTACHMENT_SEGMENT_MIN_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_MAX_INFLIGHT = 10;
+    private static final int DEFAULT_MAX_INFLIGHT_QUEUE = 1000;
+    private static final int DEFAULT_ACK_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_ACK_RETRIES = 3;
+    private static final int DEFAULT_ACK_RETRY_DELAY = 1000;
+    private static final int DEFAULT_OUTBOX_RETRIES = 10;
+    private static final int DEFAULT_OUTBOX_RETRY_DELAY = 5000;
+    private static final int DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+    private static final int DEFAULT_STAGING_MAX_PENDING = 10000;
+    private static final int DEFAULT_IDEMPOTENT_CACHE_SIZE = 100000;
+    private static final int DEFAULT_IDEMPOTENT_TTL = 24 * 60 * 60 * 1000;
+    private static final long DEFAULT_SIGNATURE_CACHE_TTL = 60 * 60 * 1000;
     private static final String DEFAULT_FTP_LOGIN = "anonymous";
     private static final String DEFAULT_FTP_PASSWORD = "smev";
 
@@ -54,8 +73,40 @@ class Smev3Configuration
     private boolean isGreedy;
     private Smev3BodyType bodyType;
     private int errorDelay;
+    private int transportErrorDelay;
+    private int processingErrorDelay;
+    private int idleMaxDelay;
+    private double backoffJitter;
     private boolean isAutoAck;
     private boolean omitXMLDeclaration;
+    private Smev3HeaderFilter headerFilter;
+    private int concurrentConsumers;
+    private int maxConcurrentConsumers;
+    private int maxInflight;
+    private int maxInflightQueue;
+    private boolean parallelAttachmentDownloads;
+    private boolean parallelAttachmentUploads;
+    private boolean lazyAttachments;
+    private boolean asyncAck;
+    private int ackQueueSize;
+    private int ackThreads;
+    private int ackRetries;
+    private int ackRetryDelay;
+    private String outbox;
+    private int outboxThreads;
+    private int outboxRetries;
+    private int outboxRetryDelay;
+    private String staging;
+    private int stagingThreads;
+    private int stagingRetries;
+    private int stagingRetryDelay;
+    private int stagingMaxPending;
+    private boolean idempotent;
+    private int idempotentCacheSize;
+    private int idempotentTtl;
+    private String idempotentStore;
+    private Journal.Sync journalSync;
+    private int journalSyncInterval;
     private AttachmentsStrategy attachmentsStrategy;
 
     private String signerFileCertificateStore;
@@ -70,6 +121,8 @@ class Smev3Configuration
     private int ftpMaxAttempts;
     private int ftpTimeout;
     private int largeAttachmentThreshold;
+    private int largeAttachmentSegments;
+    private long largeAttachmentSegmentMinSize;
 
     private String transportMainUrl;
     private int transportMainTimeout;
@@ -86,6 +139,9 @@ class Smev3Configuration
     private boolean validateSMEVSignature;
 
     private String messageStorage;
+    private long signatureCacheSize;
+    private long signatureCacheTtl;
+    private int signerPoolSize;
 
     private SignerConfiguration signerConfiguration;
     private MessageTransportConfiguration messageTransportConfiguration;
@@ -137,20 +193,109 @@ class Smev3Configuration
             bodyType = Smev3BodyType.Envelop;
         else if (param.equalsIgnoreCase(Smev3BodyType.SMEVMessage.toString()))
             bodyType = Smev3BodyType.SMEVMessage;
+        else if (param.equalsIgnoreCase(Smev3BodyType.Element.toString()))
+            bodyType = Smev3BodyType.Element;
+        else if (param.equalsIgnoreCase(Smev3BodyType.Bytes.toString()))
+            bodyType = Smev3BodyType.Bytes;
+        else if (param.equalsIgnoreCase(Smev3BodyType.Stream.toString()))
+            bodyType = Smev3BodyType.Stream;
         else
-            throw new IllegalArgumentException("Invalid bodyType: (" + param + "). Must be type in (Content, Envelop, SMEVMessage)");
+            throw new IllegalArgumentException("Invalid bodyType: (" + param + "). Must be type in (Content, Envelop, SMEVMessage, Element, Bytes, Stream)");
 
         isGreedy = component.getAndRemoveParameter(parameters, "greedy", Boolean.class, true);
         errorDelay = component.getAndRemoveParameter(parameters, "errorDelay", Integer.class, DEFAULT_ERROR_DELAY);
+        transportErrorDelay = component.getAndRemoveParameter(parameters, "transportErrorDelay", Integer.class, Math.min(DEFAULT_TRANSPORT_ERROR_DELAY, errorDelay));
+        processingErrorDelay = component.getAndRemoveParameter(parameters, "processingErrorDelay", Integer.class, Math.min(DEFAULT_PROCESSING_ERROR_DELAY, errorDelay));
+        idleMaxDelay = component.getAndRemoveParameter(parameters, "idleMaxDelay", Integer.class, 0);
+        backoffJitter = component.getAndRemoveParameter(parameters, "backoffJitter", Double.class, DEFAULT_BACKOFF_JITTER);
+        if (transportErrorDelay < 0 || processingErrorDelay < 0 || idleMaxDelay < 0 || backoffJitter < 0 || backoffJitter > 1)
+            throw new IllegalArgumentException("Invalid transportErrorDelay: (" + transportErrorDelay + "), processingErrorDelay: (" + processingErrorDelay + "), idleMaxDelay: (" + idleMaxDelay + ") or backoffJitter: (" + backoffJitter + "). Must be delays >= 0, 0 <= backoffJitter <= 1");
         isAutoAck = component.getAndRemoveParameter(parameters, "autoAck", Boolean.class, true);
         omitXMLDeclaration = component.getAndRemoveParameter(parameters, "omitXMLDeclaration", Boolean.class, true);
 
+        param = component.getAndRemoveParameter(parameters, "headersProfile", String.class, Smev3HeaderFilter.Profile.All.toString());
+        Smev3HeaderFilter.Profile headersProfile;
+        if (param.equalsIgnoreCase(Smev3HeaderFilter.Profile.All.toString()))
+            headersProfile = Smev3HeaderFilter.Profile.All;
+        else if (param.equalsIgnoreCase(Smev3HeaderFilter.Profile.Minimal.toString()))
+            headersProfile = Smev3HeaderFilter.Profile.Minimal;
+        else
+            throw new IllegalArgumentException("Invalid headersProfile: (" + param + "). Must be type in (All, Minimal)");
+        headerFilter = new Smev3HeaderFilter(headersProfile,
+                component.getAndRemoveParameter(parameters, "includeHeaders", String.class, null),
+                component.getAndRemoveParameter(parameters, "excludeHeaders", String.class, null),
+                component.getAndRemoveParameter(parameters, "lazyHeaders", Boolean.class, false));
+
+        concurrentConsumers = component.getAndRemoveParameter(parameters, "concurrentConsumers", Integer.class, 1);
+        maxConcurrentConsumers = component.getAndRemoveParameter(parameters, "maxConcurrentConsumers", Integer.class, concurrentConsumers);
+        if (concurrentConsumers < 1 || maxConcurrentConsumers < concurrentConsumers)
+            throw new IllegalArgumentException("Invalid concurrentConsumers: (" + concurrentConsumers + ") or maxConcurrentConsumers: (" + maxConcurrentConsumers + "). Must be 1 <= concurrentConsumers <= maxConcurrentConsumers");
+
+        parallelAttachmentDownloads = component.getAndRemoveParameter(parameters, "parallelAttachmentDownloads", Boolean.class, false);
+        parallelAttachmentUploads = component.getAndRemoveParameter(parameters, "parallelAttachmentUploads", Boolean.class, false);
+        lazyAttachments = component.getAndRemoveParameter(parameters, "lazyAttachments", Boolean.class, false);
+        maxInflight = component.getAndRemoveParameter(parameters, "maxInflight", Integer.class, DEFAULT_MAX_INFLIGHT);
+        maxInflightQueue = component.getAndRemoveParameter(parameters, "maxInflightQueue", Integer.class, DEFAULT_MAX_INFLIGHT_QUEUE);
+        if (maxInflight < 1 || maxInflightQueue < 0)
+            throw new IllegalArgumentException("Invalid maxInflight: (" + maxInflight + ") or maxInflightQueue: (" + maxInflightQueue + "). Must be maxInflight >= 1, maxInflightQueue >= 0");
+
+        asyncAck = component.getAndRemoveParameter(parameters, "asyncAck", Boolean.class, false);
+        ackQueueSize = component.getAndRemoveParameter(parameters, "ackQueueSize", Integer.class, DEFAULT_ACK_QUEUE_SIZE);
+        ackThreads = component.getAndRemoveParameter(parameters, "ackThreads", Integer.class, 1);
+        ackRetries = component.getAndRemoveParameter(parameters, "ackRetries", Integer.class, DEFAULT_ACK_RETRIES);
+        ackRetryDelay = component.getAndRemoveParameter(parameters, "ackRetryDelay", Integer.class, DEFAULT_ACK_RETRY_DELAY);
+        if (ackQueueSize < 1 || ackThreads < 1 || ackRetries < 0 || ackRetryDelay < 0)
+            throw new IllegalArgumentException("Invalid ackQueueSize: (" + ackQueueSize + "), ackThreads: (" + ackThreads + "), ackRetries: (" + ackRetries + ") or ackRetryDelay: (" + ackRetryDelay + "). Must be ackQueueSize >= 1, ackThreads >= 1, ackRetries >= 0, ackRetryDelay >= 0");
+
+        outbox = component.getAndRemoveParameter(parameters, "outbox", String.class, null);
+        outboxThreads = component.getAndRemoveParameter(parameters, "outboxThreads", Integer.class, 1);
+        outboxRetries = component.getAndRemoveParameter(parameters, "outboxRetries", Integer.class, DEFAULT_OUTBOX_RETRIES);
+        outboxRetryDelay = component.getAndRemoveParameter(parameters, "outboxRetryDelay", Integer.class, DEFAULT_OUTBOX_RETRY_DELAY);
+        if (outboxThreads < 1 || outboxRetries < 0 || outboxRetryDelay < 0)
+            throw new IllegalArgumentException("Invalid outboxThreads: (" + outboxThreads + "), outboxRetries: (" + outboxRetries + ") or outboxRetryDelay: (" + outboxRetryDelay + "). Must be outboxThreads >= 1, outboxRetries >= 0, outboxRetryDelay >= 0");
+        if (outbox != null && bodyType.equals(Smev3BodyType.SMEVMessage))
+            throw new IllegalArgumentException("Invalid bodyType: (" + bodyType + "). Outbox supports bodyType in (Content)");
+
+        staging = component.getAndRemoveParameter(parameters, "staging", String.class, null);
+        stagingThreads = component.getAndRemoveParameter(parameters, "stagingThreads", Integer.class, 1);
+        stagingRetries = component.getAndRemoveParameter(parameters, "stagingRetries", Integer.class, DEFAULT_OUTBOX_RETRIES);
+        stagingRetryDelay = component.getAndRemoveParameter(parameters, "stagingRetryDelay", Integer.class, DEFAULT_OUTBOX_RETRY_DELAY);
+        stagingMaxPending = component.getAndRemoveParameter(parameters, "stagingMaxPending", Integer.class, DEFAULT_STAGING_MAX_PENDING);
+        if (stagingThreads < 1 || stagingRetries < 0 || stagingRetryDelay < 0 || stagingMaxPending < 1)
+            throw new IllegalArgumentException("Invalid stagingThreads: (" + stagingThreads + "), stagingRetries: (" + stagingRetries + "), stagingRetryDelay: (" + stagingRetryDelay + ") or stagingMaxPending: (" + stagingMaxPending + "). Must be stagingThreads >= 1, stagingRetries >= 0, stagingRetryDelay >= 0, stagingMaxPending >= 1");
+        if (staging != null && bodyType.equals(Smev3BodyType.SMEVMessage))
+            throw new IllegalArgumentException("Invalid bodyType: (" + bodyType + "). Staging supports bodyType in (Content, Envelop, Element, Bytes, Stream)");
+
+        idempotent = component.getAndRemoveParameter(parameters, "idempotent", Boolean.class, false);
+        idempotentCacheSize = component.getAndRemoveParameter(parameters, "idempotentCacheSize", Integer.class, DEFAULT_IDEMPOTENT_CACHE_SIZE);
+        idempotentTtl = component.getAndRemoveParameter(parameters, "idempotentTtl", Integer.class, DEFAULT_IDEMPOTENT_TTL);
+        idempotentStore = component.getAndRemoveParameter(parameters, "idempotentStore", String.class, null);
+        if (idempotentCacheSize < 1 || idempotentTtl < 1)
+            throw new IllegalArgumentException("Invalid idempotentCacheSize: (" + idempotentCacheSize + ") or idempotentTtl: (" + idempotentTtl + "). Must be idempotentCacheSize >= 1, idempotentTtl >= 1");
+
+        param = component.getAndRemoveParameter(parameters, "journalSync", String.class, Journal.Sync.Always.toString());
+        if (param.equalsIgnoreCase(Journal.Sync.Always.toString()))
+            journalSync = Journal.Sync.Always;
+        else if (param.equalsIgnoreCase(Journal.Sync.Interval.toString()))
+            journalSync = Journal.Sync.Interval;
+        else if (param.equalsIgnoreCase(Journal.Sync.None.toString()))
+            journalSync = Journal.Sync.None;
+        else
+            throw new IllegalArgumentException("Invalid journalSync: (" + param + "). Must be type in (Always, Interval, None)");
+        journalSyncInterval = component.getAndRemoveParameter(parameters, "journalSyncInterval", Integer.class, DEFAULT_JOURNAL_SYNC_INTERVAL);
+        if (journalSyncInterval < 0)
+            throw new IllegalArgumentException("Invalid journalSyncInterval: (" + journalSyncInterval + "). Must be >= 0");
+
         ftpAddress = environment.getProperty("smev3.large.attachment.transport.address");
         ftpLogin = environment.getProperty("smev3.large.attachment.transport.login", String.class, DEFAULT_FTP_LOGIN);
         ftpPassword = environment.getProperty("smev3.large.attachment.transport.password", String.class, DEFAULT_FTP_PASSWORD);
         ftpMaxAttempts = environment.getProperty("smev3.large.attachment.transport.retries", Integer.class, DEFAULT_RETRIES_COUNT);
         ftpTimeout = environment.getProperty("smev3.large.attachment.transport.timeout", Integer.class, DEFAULT_TIMEOUT_MILLIS);
         largeAttachmentThreshold = environment.getProperty("smev3.large.attachment.threshold", Integer.class, DEFAULT_LARGE_ATTACHMENT_THRESHOLD);
+        largeAttachmentSegments = environment.getProperty("smev3.large.attachment.transport.segments", Integer.class, DEFAULT_LARGE_ATTACHMENT_SEGMENTS);
+        largeAttachmentSegmentMinSize = environment.getProperty("smev3.large.attachment.transport.segment.min.size", Long.class, DEFAULT_LARGE_ATTACHMENT_SEGMENT_MIN_SIZE);
+        if (largeAttachmentSegments < 1 || largeAttachmentSegmentMinSize < 0)
+            throw new IllegalArgumentException("Invalid smev3.large.attachment.transport.segments: (" + largeAttachmentSegments + ") or smev3.large.attachment.transport.segment.min.size: (" + largeAttachmentSegmentMinSize + "). Must be segments >= 1, segment.min.size >= 0");
 
         signerFileCertificateStore = environment.getProperty("smev3.signer.certificate.store");
         signerCertificateAlias = environment.getProperty("smev3.signer.certificate.alias");
@@ -174,6 +319,13 @@ class Smev3Configuration
 
         messageStorage = environment.getProperty("smev3.message.storage", String.class, null);
 
+        signatureCacheSize = environment.getProperty("smev3.signature.cache.size", Long.class, 0L);
+        signatureCacheTtl = environment.getProperty("smev3.signature.cache.ttl", Long.class, DEFAULT_SIGNATURE_CACHE_TTL);
+
+        signerPoolSize = environment.getProperty("smev3.signer.pool.size", Integer.class, Runtime.getRuntime().availableProcessors());
+        if(signerPoolSize < 1)
+            throw new IllegalArgumentException("Invalid smev3.signer.pool.size: (" + signerPoolSize + "). Must be greater than 0");
+
         attachmentsStrategy = component.getAndRemoveOrResolveReferenceParameter(parameters, "attachmentsStrategy", AttachmentsStrategy.class, new InMemoryAttachmentsStrategy());
     }
 
@@ -202,21 +354,191 @@ class Smev3Configuration
         return errorDelay;
     }
 
+    public int getTransportErrorDelay()
+    {
+        return transportErrorDelay;
+    }
+
+    public int getProcessingErrorDelay()
+    {
+        return processingErrorDelay;
+    }
+
+    public int getIdleMaxDelay()
+    {
+        return idleMaxDelay;
+    }
+
+    public double getBackoffJitter()
+    {
+        return backoffJitter;
+    }
+
     public boolean isAutoAck()
     {
         return isAutoAck;
     }
 
+    public Smev3HeaderFilter getHeaderFilter()
+    {
+        return headerFilter;
+    }
+
     public boolean isOmitXMLDeclaration()
     {
         return omitXMLDeclaration;
     }
 
+    public int getConcurrentConsumers()
+    {
+        return concurrentConsumers;
+    }
+
+    public int getMaxConcurrentConsumers()
+    {
+        return maxConcurrentConsumers;
+    }
+
+    public boolean isParallelAttachmentDownloads()
+    {
+        return parallelAttachmentDownloads;
+    }
+
+    public boolean isParallelAttachmentUploads()
+    {
+        return parallelAttachmentUploads;
+    }
+
+    public String getOutbox()
+    {
+        return outbox;
+    }
+
+    public int getOutboxThreads()
+    {
+        return outboxThreads;
+    }
+
+    public int getOutboxRetries()
+    {
+        return outboxRetries;
+    }
+
+    public int getOutboxRetryDelay()
+    {
+        return outboxRetryDelay;
+    }
+
+    public String getStaging()
+    {
+        return staging;
+    }
+
+    public int getStagingThreads()
+    {
+        return stagingThreads;
+    }
+
+    public int getStagingRetries()
+    {
+        return stagingRetries;
+    }
+
+    public int getStagingRetryDelay()
+    {
+        return stagingRetryDelay;
+    }
+
+    public int getStagingMaxPending()
+    {
+        return stagingMaxPending;
+    }
+
+    public boolean isIdempotent()
+    {
+        return idempotent;
+    }
+
+    public int getIdempotentCacheSize()
+    {
+        return idempotentCacheSize;
+    }
+
+    public int getIdempotentTtl()
+    {
+        return idempotentTtl;
+    }
+
+    public String getIdempotentStore()
+    {
+        return idempotentStore;
+    }
+
+    public Journal.Sync getJournalSync()
+    {
+        return journalSync;
+    }
+
+    public int getJournalSyncInterval()
+    {
+        return journalSyncInterval;
+    }
+
+    public boolean isLazyAttachments()
+    {
+        return lazyAttachments;
+    }
+
+    public boolean isAsyncAck()
+    {
+        return asyncAck;
+    }
+
+    public int getAckQueueSize()
+    {
+        return ackQueueSize;
+    }
+
+    public int getAckThreads()
+    {
+        return ackThreads;
+    }
+
+    public int getAckRetries()
+    {
+        return ackRetries;
+    }
+
+    public int getAckRetryDelay()
+    {
+        return ackRetryDelay;
+    }
+
+    public int getMaxInflight()
+    {
+        return maxInflight;
+    }
+
+    public int getMaxInflightQueue()
+    {
+        return maxInflightQueue;
+    }
+
     public int getLargeAttachmentThreshold()
     {
         return largeAttachmentThreshold;
     }
 
+    public int getLargeAttachmentSegments()
+    {
+        return largeAttachmentSegments;
+    }
+
+    public long getLargeAttachmentSegmentMinSize()
+    {
+        return largeAttachmentSegmentMinSize;
+    }
+
     public AttachmentsStrategy getAttachmentsStrategy()
     {
         return attachmentsStrategy;
@@ -227,6 +549,35 @@ class Smev3Configuration
         return smevVersion;
     }
 
+    // Настройки, от которых зависят Signer и WSTemplate. Endpoint с одинаковым ключом используют общий Smev3Client
+    public List<Object> getClientKey()
+    {
+        return Arrays.asList(
+                smevVersion,
+                signerFileCertificateStore, signerCertificateAlias, signerPrivateKeyAlias, signerPrivateKeyPassword, signerKeyStoreType,
+                transportMainUrl, transportMainTimeout, transportMainRetriesCount,
+                transportReserveUrl, transportReserveTimeout, transportReserveRetriesCount,
+                validateInput, validateOutput, loggingInput, loggingOutput, validateSMEVSignature,
+                messageStorage,
+                signatureCacheSize, signatureCacheTtl,
+                signerPoolSize);
+    }
+
+    public long getSignatureCacheSize()
+    {
+        return signatureCacheSize;
+    }
+
+    public long getSignatureCacheTtl()
+    {
+        return signatureCacheTtl;
+    }
+
+    public int getSignerPoolSize()
+    {
+        return signerPoolSize;
+    }
+
     public SignerConfiguration getSignerConfiguration()
     {
         if (this.signerConfiguration == null)
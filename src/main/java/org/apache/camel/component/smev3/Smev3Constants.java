@@ -2,6 +2,7 @@ package org.apache.camel.component.smev3;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.attachment.Attachment;
+import org.apache.camel.component.smev3.utils.LazyString;
 import org.apache.camel.spi.Metadata;
 import org.apache.xerces.impl.dv.util.Base64;
 import ru.voskhod.smev.client.api.types.exception.SMEVProcessingException;
@@ -73,67 +74,82 @@ public class Smev3Constants
     }
 
     public static void fillExchangeHeaders(Exchange exchange, SMEVMetadata smevMetadata)
+    {
+        fillExchangeHeaders(exchange, smevMetadata, Smev3HeaderFilter.ALL);
+    }
+
+    public static void fillExchangeHeaders(Exchange exchange, SMEVMetadata smevMetadata, Smev3HeaderFilter filter)
     {
         if(smevMetadata != null)
         {
             if(smevMetadata.getMessageIdentity() != null)
             {
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_ID, smevMetadata.getMessageIdentity().getMessageId());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_REFERENCE_ID, smevMetadata.getMessageIdentity().getReferenceMessageId());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_TRANSACTION_CODE, smevMetadata.getMessageIdentity().getTransactionCode());
+                set(exchange, filter, Smev3Constants.SMEV3_MESSAGE_ID, smevMetadata.getMessageIdentity().getMessageId());
+                set(exchange, filter, Smev3Constants.SMEV3_MESSAGE_REFERENCE_ID, smevMetadata.getMessageIdentity().getReferenceMessageId());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_TRANSACTION_CODE, smevMetadata.getMessageIdentity().getTransactionCode());
             }
             if(smevMetadata.getProcessingInformation() != null)
             {
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_NODEID, smevMetadata.getProcessingInformation().getNodeId());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_MESSAGETYPE, smevMetadata.getProcessingInformation().getType());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_NODEID, smevMetadata.getProcessingInformation().getNodeId());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_MESSAGETYPE, smevMetadata.getProcessingInformation().getType());
                 if(smevMetadata.getProcessingInformation() instanceof ResponseInformation)
                 {
                     ResponseInformation responseInformation = (ResponseInformation) smevMetadata.getProcessingInformation();
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_ORIGINAL_MESSAGEID, responseInformation.getOriginalMessageId());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_REPLYTO, responseInformation.getReplyTo());
+                    set(exchange, filter, Smev3Constants.SMEV3_ORIGINAL_MESSAGEID, responseInformation.getOriginalMessageId());
+                    set(exchange, filter, Smev3Constants.SMEV3_MESSAGE_REPLYTO, responseInformation.getReplyTo());
                 }
                 else if(smevMetadata.getProcessingInformation() instanceof RequestInformation)
                 {
                     RequestInformation requestInformation = (RequestInformation) smevMetadata.getProcessingInformation();
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_TESTMESSAGE, requestInformation.isTestMessage());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_EOL, requestInformation.getEol());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_TESTMESSAGE, requestInformation.isTestMessage());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_EOL, requestInformation.getEol());
                 }
             }
             if(smevMetadata.getSmevContext() != null)
             {
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_IDTRANSPORT, smevMetadata.getSmevContext().getIdTransport());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_PROCESSINGDETAILS, smevMetadata.getSmevContext().getProcessingDetails());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_INTERACTIONTYPE, smevMetadata.getSmevContext().getInteractionType());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_DESTINATIONNAME, smevMetadata.getSmevContext().getDestinationName());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_SENDINGTIMESTAMP, smevMetadata.getSmevContext().getSendingTimestamp());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_DELIVERYTIMESTAMP, smevMetadata.getSmevContext().getDeliveryTimestamp());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_STATUS, smevMetadata.getSmevContext().getSmevStatus());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_REPLYTO, smevMetadata.getSmevContext().getReplyTo());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_IDTRANSPORT, smevMetadata.getSmevContext().getIdTransport());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_PROCESSINGDETAILS, smevMetadata.getSmevContext().getProcessingDetails());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_INTERACTIONTYPE, smevMetadata.getSmevContext().getInteractionType());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_DESTINATIONNAME, smevMetadata.getSmevContext().getDestinationName());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_SENDINGTIMESTAMP, smevMetadata.getSmevContext().getSendingTimestamp());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_DELIVERYTIMESTAMP, smevMetadata.getSmevContext().getDeliveryTimestamp());
+                set(exchange, filter, Smev3Constants.SMEV3_METADATA_STATUS, smevMetadata.getSmevContext().getSmevStatus());
+                set(exchange, filter, Smev3Constants.SMEV3_MESSAGE_REPLYTO, smevMetadata.getSmevContext().getReplyTo());
 
                 if(smevMetadata.getSmevContext().getSender() != null)
                 {
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_SENDER_MNEMONIC, smevMetadata.getSmevContext().getSender().getMnemonic());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_SENDER_HUMANREADABLENAME, smevMetadata.getSmevContext().getSender().getHumanReadableName());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_SENDER_MNEMONIC, smevMetadata.getSmevContext().getSender().getMnemonic());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_SENDER_HUMANREADABLENAME, smevMetadata.getSmevContext().getSender().getHumanReadableName());
                 }
                 if(smevMetadata.getSmevContext().getRecipient() != null)
                 {
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_RECIPIENT_MNEMONIC, smevMetadata.getSmevContext().getRecipient().getMnemonic());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_METADATA_RECIPIENT_HUMANREADABLENAME, smevMetadata.getSmevContext().getRecipient().getHumanReadableName());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_RECIPIENT_MNEMONIC, smevMetadata.getSmevContext().getRecipient().getMnemonic());
+                    set(exchange, filter, Smev3Constants.SMEV3_METADATA_RECIPIENT_HUMANREADABLENAME, smevMetadata.getSmevContext().getRecipient().getHumanReadableName());
                 }
                 if(smevMetadata.getSmevContext().getException() != null)
                 {
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_CAUSE, smevMetadata.getSmevContext().getException().getCause());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_LOCALIZED_MESSAGE, smevMetadata.getSmevContext().getException().getLocalizedMessage());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_MESSAGE, smevMetadata.getSmevContext().getException().getMessage());
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_STACKTRACE, printStackTrace(smevMetadata.getSmevContext().getException().getStackTrace()));
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_DUMP, printException(smevMetadata.getSmevContext().getException()));
+                    set(exchange, filter, Smev3Constants.SMEV3_EXCEPTION_CAUSE, smevMetadata.getSmevContext().getException().getCause());
+                    set(exchange, filter, Smev3Constants.SMEV3_EXCEPTION_LOCALIZED_MESSAGE, smevMetadata.getSmevContext().getException().getLocalizedMessage());
+                    set(exchange, filter, Smev3Constants.SMEV3_EXCEPTION_MESSAGE, smevMetadata.getSmevContext().getException().getMessage());
+                    // String, при lazyHeaders - LazyString, формируемая только при чтении заголовка
+                    Exception exception = smevMetadata.getSmevContext().getException();
+                    if(filter.accept(Smev3Constants.SMEV3_EXCEPTION_STACKTRACE))
+                        Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_STACKTRACE, filter.isLazy() ? new LazyString(() -> printStackTrace(exception.getStackTrace())) : printStackTrace(exception.getStackTrace()));
+                    if(filter.accept(Smev3Constants.SMEV3_EXCEPTION_DUMP))
+                        Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_DUMP, filter.isLazy() ? new LazyString(() -> printException(exception)) : printException(exception));
                     if(smevMetadata.getSmevContext().getException() instanceof SMEVProcessingException)
-                        Smev3Constants.set(exchange, Smev3Constants.SMEV3_EXCEPTION_CODE, ((SMEVProcessingException) smevMetadata.getSmevContext().getException()).getCode());
+                        set(exchange, filter, Smev3Constants.SMEV3_EXCEPTION_CODE, ((SMEVProcessingException) smevMetadata.getSmevContext().getException()).getCode());
                 }
             }
         }
     }
 
+    private static void set(Exchange exchange, Smev3HeaderFilter filter, String name, Object value)
+    {
+        if(filter.accept(name))
+            Smev3Constants.set(exchange, name, value);
+    }
+
     public static String printStackTrace(StackTraceElement[] trace)
     {
         StringBuilder sb = new StringBuilder();
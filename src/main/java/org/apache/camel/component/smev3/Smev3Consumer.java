@@ -1,21 +1,27 @@
 package org.apache.camel.component.smev3;
 
+import io.micrometer.core.instrument.Gauge;
 import org.apache.camel.*;
 import org.apache.camel.attachment.Attachment;
 import org.apache.camel.attachment.AttachmentMessage;
 import org.apache.camel.attachment.DefaultAttachment;
 import org.apache.camel.component.smev3.strategy.AttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.LazyDataSource;
 import org.apache.camel.component.smev3.utils.ApacheFTPTransport;
+import org.apache.camel.component.smev3.utils.Attachments;
+import org.apache.camel.component.smev3.utils.IdempotentStore;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
+import org.apache.camel.component.smev3.utils.XMLContent;
+import org.apache.camel.converter.stream.ByteArrayInputStreamCache;
 import org.apache.camel.spi.PollingConsumerPollStrategy;
+import org.apache.camel.spi.ShutdownStrategy;
+import org.apache.camel.support.MessageHelper;
 import org.apache.camel.support.ScheduledPollConsumer;
 import org.apache.xerces.impl.dv.util.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.voskhod.crypto.util.XMLTransformHelper;
-import ru.voskhod.smev.client.api.factory.Factory;
-import ru.voskhod.smev.client.api.services.signature.Signer;
 import ru.voskhod.smev.client.api.services.template.WSTemplate;
-import ru.voskhod.smev.client.api.signature.impl.SignerFactory;
 import ru.voskhod.smev.client.api.types.exception.SMEVException;
 import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
 import ru.voskhod.smev.client.api.types.message.SMEVMessage;
@@ -24,65 +30,332 @@ import ru.voskhod.smev.client.api.types.message.attachment.MTOMAttachment;
 import ru.voskhod.smev.client.api.types.message.attachment.SMEVAttachment;
 import ru.voskhod.smev.client.api.types.message.system.processing.ProcessingInformation;
 import javax.activation.DataHandler;
-import java.io.InputStream;
+import javax.activation.FileDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Smev3Consumer extends ScheduledPollConsumer implements PollingConsumerPollStrategy
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(Smev3Consumer.class);
     private final Smev3Configuration conf;
-    private final WSTemplate wsTemplate;
-    private final Signer signer;
-    private final ApacheFTPTransport laTransport;
-    private SMEVMessage message;
-    private Exchange exchange;
-    private Boolean accepted;
-    private final List<DataHandler> attachments = new ArrayList<>();
-
-    Smev3Consumer(Smev3Endpoint endpoint, Processor processor, Smev3Configuration conf) throws FailedToCreateConsumerException
+    private final Smev3Metrics metrics;
+    private final Smev3PollBackoff backoff;
+    private ApacheFTPTransport laTransport;
+    private final ThreadLocal<PollContext> pollContext = new ThreadLocal<>();
+    private Smev3Client client;
+    private WSTemplate wsTemplate;
+    private ExecutorService workers;
+    private Smev3AckDispatcher ackDispatcher;
+    private Smev3JournalProcessor staging;
+    private IdempotentStore idempotentStore;
+    private Gauge idempotentGauge;
+    private final AtomicInteger activeConsumers = new AtomicInteger();
+    private final AtomicInteger idleConsumers = new AtomicInteger();
+    private volatile CountDownLatch stopped;
+
+    private static final class PollContext
+    {
+        private SMEVMessage message;
+        private Exchange exchange;
+        private Boolean accepted;
+        private boolean worker;
+        private final List<DataHandler> attachments = new ArrayList<>();
+    }
+
+    private static final class PendingAttachment
+    {
+        private final SMEVAttachment attachment;
+        private final DataHandler dataHandler;
+        private final Future<?> download;
+
+        private PendingAttachment(SMEVAttachment attachment, DataHandler dataHandler, Future<?> download)
+        {
+            this.attachment = attachment;
+            this.dataHandler = dataHandler;
+            this.download = download;
+        }
+    }
+
+    Smev3Consumer(Smev3Endpoint endpoint, Processor processor, Smev3Configuration conf)
     {
         super(endpoint, processor);
         this.conf = conf;
+        this.metrics = endpoint.getMetrics();
+        this.backoff = new Smev3PollBackoff(conf);
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        // Пул FTP сессий и потоки загрузки частей компоненты закрываются при ее остановке и создаются заново после запуска
+        Smev3Component component = ((Smev3Endpoint) getEndpoint()).getComponent();
+        if(conf.getLargeAttachmentSegments() > 1)
+            laTransport = new ApacheFTPTransport(conf.getLargeAttachmentTransportConfiguration(), component.getFtpClientPool(), metrics,
+                    conf.getLargeAttachmentSegments(), conf.getLargeAttachmentSegmentMinSize(), component.getSegmentsExecutor());
+        else
+            laTransport = new ApacheFTPTransport(conf.getLargeAttachmentTransportConfiguration(), component.getFtpClientPool(), metrics);
 
         try
         {
-            signer = SignerFactory.getSigner(
-                    conf.getSignerConfiguration(),
-                    conf.getSignerConfiguration().getCertificateAlias(),
-                    conf.getSignerConfiguration().getPrivateKeyAlias(),
-                    conf.getSignerConfiguration().getPrivateKeyPassword());
-            wsTemplate = Factory.getWsTemplateInstance(
-                    signer,
-                    Factory.getValidatorInstance(conf.getWSTemplateConfiguration().getValidatorConfig(), conf.getSmevVersion()),
-                    Factory.getMessageMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
-                    Factory.getMessageTransportInstance(conf.getGeoTemplateConfiguration().getGeoMessageTransportConfiguration(), conf.getSmevVersion()),
-                    Factory.getExceptionMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
-                    null, // must be null, use laTransport instead
-                    conf.getGeoTemplateConfiguration(),
-                    conf.getSmevVersion());
-            laTransport = new ApacheFTPTransport(conf.getLargeAttachmentTransportConfiguration());
+            client = ((Smev3Endpoint) getEndpoint()).getComponent().acquireClient(conf);
+            wsTemplate = client.getWsTemplate();
         }
         catch (SMEVRuntimeException e)
         {
-            throw new FailedToCreateConsumerException(endpoint, e);
+            throw new FailedToCreateConsumerException(getEndpoint(), e);
+        }
+
+        if(conf.isAsyncAck())
+            ackDispatcher = new Smev3AckDispatcher(this, getEndpoint().getCamelContext().getExecutorServiceManager(), wsTemplate, metrics, conf);
+
+        if(conf.getStaging() != null)
+        {
+            Smev3Journal journal = new Smev3Journal(Paths.get(conf.getStaging()), conf.getJournalSync(), conf.getJournalSyncInterval());
+            try
+            {
+                staging = new Smev3JournalProcessor(this, "staging", getEndpoint(), journal, this::processStaged, metrics,
+                        conf.getStagingThreads(), conf.getStagingRetries(), conf.getStagingRetryDelay(), conf.isOmitXMLDeclaration());
+            }
+            catch (Exception ex)
+            {
+                journal.close();
+                throw ex;
+            }
+        }
+
+        if(conf.isIdempotent())
+        {
+            idempotentStore = new IdempotentStore(conf.getIdempotentCacheSize(), conf.getIdempotentTtl(),
+                    conf.getIdempotentStore() == null ? null : Paths.get(conf.getIdempotentStore()));
+            idempotentGauge = metrics.idempotentSize(idempotentStore, IdempotentStore::size);
+        }
+
+        super.doStart();
+
+        if(conf.getMaxConcurrentConsumers() > 1)
+        {
+            workers = getEndpoint().getCamelContext().getExecutorServiceManager().newFixedThreadPool(this, "Smev3Consumer", conf.getMaxConcurrentConsumers());
+            stopped = new CountDownLatch(1);
+            activeConsumers.set(0);
+            idleConsumers.set(0);
+            for(int i = 0; i < conf.getConcurrentConsumers(); i++)
+                startWorker();
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+
+        if(workers != null)
+        {
+            stopped.countDown(); // обработчики завершают текущее сообщение и выходят из цикла
+            getEndpoint().getCamelContext().getExecutorServiceManager().shutdownGraceful(workers);
+            // Подтверждения и журнал staging закрываются после выхода обработчиков, но не позже таймаута остановки контекста.
+            // Зависший обработчик не сможет записать сообщение в закрытый журнал, и СМЭВ доставит его повторно
+            ShutdownStrategy shutdownStrategy = getEndpoint().getCamelContext().getShutdownStrategy();
+            if( ! workers.awaitTermination(shutdownStrategy.getTimeout(), shutdownStrategy.getTimeUnit()))
+                LOGGER.warn("Smev3Consumer stop: workers are still running after {} {}", shutdownStrategy.getTimeout(), shutdownStrategy.getTimeUnit());
+            workers = null;
+        }
+
+        if(ackDispatcher != null)
+        {
+            ackDispatcher.stop(); // после остановки опроса, чтобы отправить подтверждения всех обработанных сообщений
+            ackDispatcher = null;
+        }
+
+        if(staging != null)
+        {
+            staging.stop(); // не обработанные сообщения остаются в журнале
+            staging = null;
+        }
+
+        if(idempotentStore != null)
+        {
+            metrics.remove(idempotentGauge);
+            idempotentGauge = null;
+            idempotentStore.close();
+            idempotentStore = null;
+        }
+
+        if(client != null)
+        {
+            ((Smev3Endpoint) getEndpoint()).getComponent().releaseClient(client);
+            client = null;
         }
     }
 
+    @Override
+    public boolean isPollAllowed()
+    {
+        Smev3JournalProcessor staging = this.staging;
+        return super.isPollAllowed() && backoff.isPollAllowed() && (staging == null || staging.pending() < conf.getStagingMaxPending());
+    }
+
     @Override
     protected int poll() throws Exception
     {
+        if(workers != null)
+            return 0; // сообщения читают обработчики в собственных циклах, планировщик не используется
+
+        PollContext context = new PollContext();
+        pollContext.set(context); // commit or rollback is called by ScheduledPollConsumer on this thread
+        return poll(context);
+    }
+
+    // Обработчики работают независимо: каждый в своем цикле читает, обрабатывает и подтверждает сообщение со своей паузой
+    // между опросами. Если сообщения получают все обработчики, добавляется новый (до maxConcurrentConsumers),
+    // обработчик, получивший пустой ответ, завершается, пока их больше concurrentConsumers
+    private void startWorker()
+    {
+        ExecutorService workers = this.workers;
+        if(workers == null)
+            return;
+
+        for(int active = activeConsumers.get(); active < conf.getMaxConcurrentConsumers(); active = activeConsumers.get())
+        {
+            if(activeConsumers.compareAndSet(active, active + 1))
+            {
+                try
+                {
+                    workers.execute(this::runWorker);
+                }
+                catch (RejectedExecutionException ex) // потребитель останавливается
+                {
+                    activeConsumers.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean stopWorker()
+    {
+        for(int active = activeConsumers.get(); active > conf.getConcurrentConsumers(); active = activeConsumers.get())
+        {
+            if(activeConsumers.compareAndSet(active, active - 1))
+                return true;
+        }
+        return false;
+    }
+
+    private void runWorker()
+    {
+        Smev3PollBackoff backoff = new Smev3PollBackoff(conf);
+        CountDownLatch stopped = this.stopped;
+        boolean idle = false;
+        boolean retired = false;
+
         try
         {
-            accepted = null;
-            exchange = null;
-            message = wsTemplate.get(conf.getQueryInformation());
+            while(stopped.getCount() > 0)
+            {
+                Smev3JournalProcessor staging = this.staging;
+                if(isSuspendingOrSuspended() || ! backoff.isPollAllowed() || (staging != null && staging.pending() >= conf.getStagingMaxPending()))
+                {
+                    stopped.await(Math.min(getDelay(), 100), TimeUnit.MILLISECONDS);
+                    continue;
+                }
+
+                int polledMessages = pollWorker(backoff);
+                if(polledMessages > 0)
+                {
+                    if(idle)
+                    {
+                        idle = false;
+                        idleConsumers.decrementAndGet();
+                    }
+                    if(idleConsumers.get() == 0)
+                        startWorker();
+                }
+                else
+                {
+                    if( ! idle)
+                    {
+                        idle = true;
+                        idleConsumers.incrementAndGet();
+                    }
+                    if(stopWorker())
+                    {
+                        retired = true; // activeConsumers уже уменьшен
+                        return;
+                    }
+                    stopped.await(getDelay(), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            if( ! retired)
+                activeConsumers.decrementAndGet();
+            if(idle)
+                idleConsumers.decrementAndGet();
+        }
+    }
+
+    private int pollWorker(Smev3PollBackoff backoff)
+    {
+        PollContext context = new PollContext();
+        context.worker = true;
+        pollContext.set(context);
+
+        try
+        {
+            int polledMessages = poll(context);
+            commit(this, getEndpoint(), polledMessages);
+            backoff.completed(polledMessages, getDelay());
+            return polledMessages;
+        }
+        catch (Exception ex)
+        {
+            try
+            {
+                rollback(this, getEndpoint(), 0, ex);
+            }
+            catch (Exception ignore)
+            {
+            }
+            backoff.failed(context.exchange == null); // ошибка до получения сообщения - транспортная
+            return 0;
+        }
+        finally
+        {
+            pollContext.remove();
+        }
+    }
+
+    private int poll(PollContext context) throws Exception
+    {
+        try
+        {
+            SMEVMessage message = metrics.ws("get", () -> wsTemplate.get(conf.getQueryInformation()));
+            context.message = message;
+            metrics.poll(message == null);
 
             if (message == null)
                 return 0;
 
-            exchange = this.getEndpoint().createExchange(ExchangePattern.InOnly);
+            Exchange exchange = this.getEndpoint().createExchange(ExchangePattern.InOnly);
+            context.exchange = exchange;
 
             if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
                 LOGGER.trace("Process SMEVMessage: ExchangeId = {} MessageId = {} SMEVMessage = {}",
@@ -90,31 +363,73 @@ public class Smev3Consumer extends ScheduledPollConsumer implements PollingConsu
                         exchange.getMessage().getMessageId(),
                         Smev3Constants.toLine(message.getInEnvelop()));
 
+            // Повторно доставленное сообщение (например, после ошибки подтверждения) подтверждается без обработки
+            String smevMessageId = getMessageId(message);
+            if(idempotentStore != null && smevMessageId != null)
+            {
+                Boolean accepted = idempotentStore.get(smevMessageId);
+                if(accepted != null)
+                {
+                    metrics.duplicate();
+                    LOGGER.info("Duplicate SMEVMessage: ExchangeId = {} SMEVMessageId = {} Accepted = {}", exchange.getExchangeId(), smevMessageId, accepted);
+                    context.accepted = accepted;
+                    return 1;
+                }
+            }
+
             if (message.getData() != null && message.getData().getContent() != null)
             {
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_NAMESPACE_URI, message.getData().getContent().getNamespaceURI());
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_ROOT_TYPE, message.getData().getContent().getLocalName());
+                if(conf.getHeaderFilter().accept(Smev3Constants.SMEV3_CONTENT_NAMESPACE_URI))
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_NAMESPACE_URI, message.getData().getContent().getNamespaceURI());
+                if(conf.getHeaderFilter().accept(Smev3Constants.SMEV3_CONTENT_ROOT_TYPE))
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_ROOT_TYPE, message.getData().getContent().getLocalName());
             }
 
+            boolean personalSignature = conf.getHeaderFilter().accept(Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE);
+            // Для content и envelop заголовок по умолчанию String, при lazyHeaders сериализуется только при обращении к нему
+            boolean lazySignature = conf.getHeaderFilter().isLazy();
             if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Content) && message.getData() != null)
             {
                 exchange.getMessage().setBody(XMLTransformHelper.elementToString(message.getData().getContent(), conf.isOmitXMLDeclaration()));
-                Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, XMLTransformHelper.elementToString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration()));
+                if(personalSignature)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, lazySignature
+                            ? XMLContent.lazyString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration())
+                            : XMLTransformHelper.elementToString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration()));
             }
             else if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Envelop))
             {
                 exchange.getMessage().setBody(message.getInEnvelop());
-                if (message.getData() != null)
-                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, XMLTransformHelper.elementToString(message.getData().getPersonalSignature()));
+                if (message.getData() != null && personalSignature)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, lazySignature
+                            ? XMLContent.lazyString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration())
+                            : XMLTransformHelper.elementToString(message.getData().getPersonalSignature()));
             }
             else if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.SMEVMessage))
             {
                 exchange.getMessage().setBody(message);
-                if (message.getData() != null)
+                if (message.getData() != null && personalSignature)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, message.getData().getPersonalSignature());
+            }
+            else if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Element) && message.getData() != null)
+            {
+                exchange.getMessage().setBody(message.getData().getContent());
+                if(personalSignature)
                     Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, message.getData().getPersonalSignature());
             }
+            else if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Bytes) && message.getData() != null)
+            {
+                exchange.getMessage().setBody(XMLContent.toBytes(message.getData().getContent(), conf.isOmitXMLDeclaration()));
+                if(personalSignature)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, XMLContent.lazyString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration()));
+            }
+            else if (conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Stream) && message.getData() != null)
+            {
+                exchange.getMessage().setBody(new ByteArrayInputStreamCache(new ByteArrayInputStream(XMLContent.toBytes(message.getData().getContent(), conf.isOmitXMLDeclaration())))); // StreamCache, можно читать повторно
+                if(personalSignature)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_CONTENT_PERSONAL_SIGNATURE, XMLContent.lazyString(message.getData().getPersonalSignature(), conf.isOmitXMLDeclaration()));
+            }
 
-            Smev3Constants.fillExchangeHeaders(exchange, message.getSMEVMetadata());
+            Smev3Constants.fillExchangeHeaders(exchange, message.getSMEVMetadata(), conf.getHeaderFilter());
 
             if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
                 LOGGER.trace("Process exchange: ExchangeId = {} MessageId = {} Headers = {} Properties = {} Body = {}",
@@ -122,132 +437,316 @@ public class Smev3Consumer extends ScheduledPollConsumer implements PollingConsu
                         exchange.getMessage().getMessageId(),
                         exchange.getMessage().getHeaders(),
                         exchange.getProperties(),
-                        Smev3Constants.toLine(exchange.getMessage().getBody(String.class)));
+                        Smev3Constants.toLine(MessageHelper.extractBodyAsString(exchange.getMessage())));
+
+            fillExchangeAttachments(exchange, message, context.attachments);
 
-            fillExchangeAttachments(exchange, message);
+            if(staging != null)
+            {
+                // Сообщение сохраняется в журнал и подтверждается, маршрут обрабатывает его из журнала
+                staging.submit(exchange);
+                context.accepted = true;
+                remember(smevMessageId, true);
+                return 1;
+            }
 
             if(conf.isAutoAck())
                 Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_ACCEPTED, true);
 
-            this.getProcessor().process(exchange);
-
-            if(exchange.isFailed())
+            if( ! context.attachments.isEmpty())
             {
-                if(exchange.getException() != null)
-                    throw CamelExecutionException.wrapCamelExecutionException(exchange, exchange.getException());
-                else
-                    throw new CamelExecutionException("Exception occurred during execution", exchange);
+                exchange.adapt(ExtendedExchange.class).addOnCompletion(new Smev3AttachmentsRelease(conf.getAttachmentsStrategy(), context.attachments));
+                context.attachments.clear(); // освобождаются по завершении exchange
             }
 
-            accepted = Smev3Constants.get(exchange, Smev3Constants.SMEV3_MESSAGE_ACCEPTED, Boolean.class);
+            process(exchange);
+
+            context.accepted = Smev3Constants.get(exchange, Smev3Constants.SMEV3_MESSAGE_ACCEPTED, Boolean.class);
+            if(context.accepted != null)
+                remember(smevMessageId, context.accepted); // без подтверждения СМЭВ доставит сообщение повторно, и его нужно обработать
             return 1; // polled messages
         }
         finally
         {
-            AttachmentsStrategy attachmentsStrategy = conf.getAttachmentsStrategy();
-            attachments.forEach(dh -> { try { attachmentsStrategy.done(dh); } catch(Exception ex) { } });
-            attachments.clear();
+            // Вложения, не переданные маршруту (ошибка до передачи, staging уже скопировал их в журнал)
+            new Smev3AttachmentsRelease(conf.getAttachmentsStrategy(), context.attachments).release();
+            context.attachments.clear();
         }
     }
 
-    private void fillExchangeAttachments(Exchange exchange, SMEVMessage message) throws Exception
+    private void remember(String smevMessageId, boolean accepted)
+    {
+        if(idempotentStore != null && smevMessageId != null)
+            idempotentStore.put(smevMessageId, accepted);
+    }
+
+    private static String getMessageId(SMEVMessage message)
+    {
+        if(message.getSMEVMetadata() == null || message.getSMEVMetadata().getMessageIdentity() == null)
+            return null;
+        return message.getSMEVMetadata().getMessageIdentity().getMessageId();
+    }
+
+    private void process(Exchange exchange) throws Exception
+    {
+        this.getProcessor().process(exchange);
+
+        if(exchange.isFailed())
+        {
+            if(exchange.getException() != null)
+                throw CamelExecutionException.wrapCamelExecutionException(exchange, exchange.getException());
+            else
+                throw new CamelExecutionException("Exception occurred during execution", exchange);
+        }
+    }
+
+    // Сообщение из журнала staging, уже подтвержденное в СМЭВ. При ошибке маршрута обработка повторяется
+    private void processStaged(Exchange exchange) throws Exception
+    {
+        if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
+            LOGGER.trace("Process staged exchange: ExchangeId = {} MessageId = {} Headers = {}",
+                    exchange.getExchangeId(),
+                    exchange.getMessage().getMessageId(),
+                    exchange.getMessage().getHeaders());
+
+        process(exchange);
+    }
+
+    private void fillExchangeAttachments(Exchange exchange, SMEVMessage message, List<DataHandler> attachments) throws Exception
     {
-        if(message != null && message.getData() != null && message.getData().getAttachments() != null)
+        if(message != null && message.getData() != null && message.getData().getAttachments() != null && conf.isLazyAttachments())
+        {
+            fillLazyExchangeAttachments(exchange, message, attachments);
+        }
+        else if(message != null && message.getData() != null && message.getData().getAttachments() != null)
         {
             AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
             AttachmentsStrategy attachmentsStrategy = conf.getAttachmentsStrategy();
+            ExecutorService downloadExecutor = conf.isParallelAttachmentDownloads() ? ((Smev3Endpoint) getEndpoint()).getComponent().getAttachmentsExecutor() : null;
+            AtomicBoolean cancelled = new AtomicBoolean();
+            List<PendingAttachment> pendingAttachments = new ArrayList<>();
 
-            int current = 0;
-            int total = message.getData().getAttachments().size();
-            for(SMEVAttachment attachment : message.getData().getAttachments())
+            try
             {
-                if(attachment instanceof MTOMAttachment)
+                int current = 0;
+                int total = message.getData().getAttachments().size();
+                for(SMEVAttachment attachment : message.getData().getAttachments())
                 {
-                    MTOMAttachment mtomAttachment = (MTOMAttachment) attachment;
-
-                    DataHandler dataHandler = attachmentsStrategy.get(
-                            exchange,
-                            message.getSMEVMetadata().getMessageIdentity().getMessageId(),
-                            mtomAttachment.getAttachmentId(),
-                            mtomAttachment.getAttachmentId(),
-                            mtomAttachment.getMimeType(),
-                            mtomAttachment.getSignaturePKCS7(),
-                            current++,
-                            total
-                    );
-                    if(dataHandler != null)
+                    if(attachment instanceof MTOMAttachment)
                     {
-                        attachments.add(dataHandler);
+                        MTOMAttachment mtomAttachment = (MTOMAttachment) attachment;
+
+                        DataHandler dataHandler = attachmentsStrategy.get(
+                                exchange,
+                                message.getSMEVMetadata().getMessageIdentity().getMessageId(),
+                                mtomAttachment.getAttachmentId(),
+                                mtomAttachment.getAttachmentId(),
+                                mtomAttachment.getMimeType(),
+                                mtomAttachment.getSignaturePKCS7(),
+                                current++,
+                                total
+                        );
+                        if(dataHandler != null)
+                        {
+                            attachments.add(dataHandler);
 
-                        try (OutputStream outputStream = dataHandler.getOutputStream(); InputStream inputStream = mtomAttachment.getContent().getInputStream())
+                            Attachments.transfer(mtomAttachment.getContent(), dataHandler);
+
+                            pendingAttachments.add(new PendingAttachment(attachment, dataHandler, null));
+                        }
+                    }
+                    else if(attachment instanceof LargeAttachment)
+                    {
+                        LargeAttachment largeAttachment = (LargeAttachment) attachment;
+
+                        DataHandler dataHandler = attachmentsStrategy.get(
+                                exchange,
+                                message.getSMEVMetadata().getMessageIdentity().getMessageId(),
+                                largeAttachment.getUuid().toString(),
+                                largeAttachment.getFileRef(),
+                                largeAttachment.getMimeType(),
+                                largeAttachment.getSignaturePKCS7(),
+                                current++,
+                                total
+                        );
+                        if(dataHandler != null)
                         {
-                            inputStream.transferTo(outputStream);
+                            attachments.add(dataHandler);
+
+                            Future<?> download = null;
+                            if(downloadExecutor != null)
+                                download = downloadExecutor.submit(() -> {
+                                    if( ! cancelled.get())
+                                        download(largeAttachment, dataHandler);
+                                    return null;
+                                });
+                            else
+                                download(largeAttachment, dataHandler);
+
+                            pendingAttachments.add(new PendingAttachment(attachment, dataHandler, download));
                         }
-
-                        Attachment a = new DefaultAttachment(dataHandler);
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_MIMETYPE, attachment.getMimeType());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_UUID, mtomAttachment.getAttachmentId());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_NAME, mtomAttachment.getAttachmentId());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, Base64.encode(attachment.getSignaturePKCS7()));
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, attachment.getPassportId());
-
-                        if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
-                            LOGGER.trace("Process exchange attachment: ExchangeId = {} MessageId = {} Headers = {}",
-                                    exchange.getExchangeId(),
-                                    exchange.getMessage().getMessageId(),
-                                    Smev3Constants.toString(a));
-
-                        if (attachmentsStrategy.process(exchange, a, dataHandler))
-                            attachmentMessage.addAttachmentObject(mtomAttachment.getAttachmentId(), a);
                     }
+                    else
+                        throw new Exception("Unexpected attachment type"); // TODO log
+
+                    if(downloadExecutor == null)
+                        processAttachments(exchange, attachmentMessage, attachmentsStrategy, pendingAttachments);
                 }
-                else if(attachment instanceof LargeAttachment)
+
+                processAttachments(exchange, attachmentMessage, attachmentsStrategy, pendingAttachments); // в порядке следования вложений
+            }
+            catch (Exception ex)
+            {
+                // Дожидаемся завершения начатых загрузок, чтобы AttachmentsStrategy.done не удалил файлы, в которые еще идет запись
+                cancelled.set(true);
+                for(PendingAttachment pendingAttachment : pendingAttachments)
                 {
-                    LargeAttachment largeAttachment = (LargeAttachment) attachment;
-
-                    DataHandler dataHandler = attachmentsStrategy.get(
-                            exchange,
-                            message.getSMEVMetadata().getMessageIdentity().getMessageId(),
-                            largeAttachment.getUuid().toString(),
-                            largeAttachment.getFileRef(),
-                            largeAttachment.getMimeType(),
-                            largeAttachment.getSignaturePKCS7(),
-                            current++,
-                            total
-                    );
-                    if(dataHandler != null)
-                    {
-                        attachments.add(dataHandler);
+                    if(pendingAttachment.download != null)
+                        try { pendingAttachment.download.get(); } catch (Exception ignore) { }
+                }
+                throw ex;
+            }
+        }
+    }
 
-                        try (OutputStream outputStream = dataHandler.getOutputStream())
-                        {
-                            laTransport.download(largeAttachment, outputStream);
-                        }
+    private void download(LargeAttachment largeAttachment, DataHandler dataHandler) throws Exception
+    {
+        if(dataHandler.getDataSource() instanceof FileDataSource)
+        {
+            laTransport.download(largeAttachment, ((FileDataSource) dataHandler.getDataSource()).getFile());
+            return;
+        }
 
-                        Attachment a = new DefaultAttachment(dataHandler);
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_MIMETYPE, attachment.getMimeType());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_UUID, largeAttachment.getUuid().toString());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_NAME, largeAttachment.getFileRef());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, Base64.encode(attachment.getSignaturePKCS7()));
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, attachment.getPassportId());
-                        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_HASH, largeAttachment.getHash());
-
-                        if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
-                            LOGGER.trace("Process exchange attachment: ExchangeId = {} MessageId = {} Headers = {}",
-                                    exchange.getExchangeId(),
-                                    exchange.getMessage().getMessageId(),
-                                    Smev3Constants.toString(a));
-
-                        if (attachmentsStrategy.process(exchange, a, dataHandler))
-                            attachmentMessage.addAttachmentObject(largeAttachment.getUuid().toString(), a);
-                    }
+        try (OutputStream outputStream = dataHandler.getOutputStream())
+        {
+            laTransport.download(largeAttachment, outputStream);
+        }
+    }
+
+    private void processAttachments(Exchange exchange, AttachmentMessage attachmentMessage, AttachmentsStrategy attachmentsStrategy, List<PendingAttachment> pendingAttachments) throws Exception
+    {
+        Iterator<PendingAttachment> iterator = pendingAttachments.iterator();
+        while(iterator.hasNext())
+        {
+            PendingAttachment pendingAttachment = iterator.next();
+            if(pendingAttachment.download != null)
+            {
+                try
+                {
+                    pendingAttachment.download.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
                 }
-                else
-                    throw new Exception("Unexpected attachment type"); // TODO log
             }
+            iterator.remove();
+
+            SMEVAttachment attachment = pendingAttachment.attachment;
+            Attachment a = createAttachment(attachment, pendingAttachment.dataHandler);
+
+            if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
+                LOGGER.trace("Process exchange attachment: ExchangeId = {} MessageId = {} Headers = {}",
+                        exchange.getExchangeId(),
+                        exchange.getMessage().getMessageId(),
+                        Smev3Constants.toString(a));
+
+            if (attachmentsStrategy.process(exchange, a, pendingAttachment.dataHandler))
+                attachmentMessage.addAttachmentObject(getAttachmentId(attachment), a);
+
+            metrics.attachment("in", getAttachmentType(attachment), Smev3Constants.get(a, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, null, Long.class));
         }
     }
 
+    private void fillLazyExchangeAttachments(Exchange exchange, SMEVMessage message, List<DataHandler> attachments) throws Exception
+    {
+        AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
+        AttachmentsStrategy attachmentsStrategy = conf.getAttachmentsStrategy();
+        String messageId = message.getSMEVMetadata().getMessageIdentity().getMessageId();
+
+        int current = 0;
+        int total = message.getData().getAttachments().size();
+        for(SMEVAttachment attachment : message.getData().getAttachments())
+        {
+            if( ! (attachment instanceof MTOMAttachment) && ! (attachment instanceof LargeAttachment))
+                throw new Exception("Unexpected attachment type"); // TODO log
+
+            String attachmentId = getAttachmentId(attachment);
+            String attachmentName = attachment instanceof LargeAttachment ? ((LargeAttachment) attachment).getFileRef() : attachmentId;
+
+            // Как при немедленной загрузке, пропущенное стратегией вложение не добавляется в сообщение
+            DataHandler dataHandler = attachmentsStrategy.get(exchange, messageId, attachmentId, attachmentName, attachment.getMimeType(), attachment.getSignaturePKCS7(), current++, total);
+            if(dataHandler == null)
+                continue;
+
+            Attachment[] registered = new Attachment[1];
+
+            // Содержимое загружается из MTOM/FTP при первом чтении вложения маршрутом. Вложения сообщения не изменяются:
+            // маршрут может перебирать их во время чтения
+            LazyDataSource lazyDataSource = new LazyDataSource(attachmentName, attachment.getMimeType(), dataHandler, target -> {
+                if(attachment instanceof MTOMAttachment)
+                    Attachments.transfer(((MTOMAttachment) attachment).getContent(), target);
+                else
+                    download((LargeAttachment) attachment, target);
+
+                if( ! attachmentsStrategy.process(exchange, registered[0], target))
+                    throw new IOException("Attachment \"" + attachmentName + "\" is rejected by attachments strategy");
+                metrics.attachment("in", getAttachmentType(attachment), Smev3Constants.get(registered[0], Smev3Constants.SMEV3_ATTACHMENT_LENGTH, null, Long.class));
+            });
+
+            DataHandler lazyDataHandler = new DataHandler(lazyDataSource);
+            attachments.add(lazyDataHandler);
+
+            Attachment a = createAttachment(attachment, lazyDataHandler);
+            registered[0] = a;
+
+            if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
+                LOGGER.trace("Process exchange lazy attachment: ExchangeId = {} MessageId = {} Headers = {}",
+                        exchange.getExchangeId(),
+                        exchange.getMessage().getMessageId(),
+                        Smev3Constants.toString(a));
+
+            attachmentMessage.addAttachmentObject(attachmentId, a);
+        }
+    }
+
+    private static String getAttachmentId(SMEVAttachment attachment)
+    {
+        if(attachment instanceof MTOMAttachment)
+            return ((MTOMAttachment) attachment).getAttachmentId();
+        else
+            return ((LargeAttachment) attachment).getUuid().toString();
+    }
+
+    private static String getAttachmentType(SMEVAttachment attachment)
+    {
+        return attachment instanceof MTOMAttachment ? "mtom" : "large";
+    }
+
+    private static Attachment createAttachment(SMEVAttachment attachment, DataHandler dataHandler)
+    {
+        Attachment a = new DefaultAttachment(dataHandler);
+        Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_MIMETYPE, attachment.getMimeType());
+        if(attachment instanceof MTOMAttachment)
+        {
+            String attachmentId = ((MTOMAttachment) attachment).getAttachmentId();
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_UUID, attachmentId);
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_NAME, attachmentId);
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, Base64.encode(attachment.getSignaturePKCS7()));
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, attachment.getPassportId());
+        }
+        else
+        {
+            LargeAttachment largeAttachment = (LargeAttachment) attachment;
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_UUID, largeAttachment.getUuid().toString());
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_NAME, largeAttachment.getFileRef());
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, Base64.encode(attachment.getSignaturePKCS7()));
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, attachment.getPassportId());
+            Smev3Constants.set(a, Smev3Constants.SMEV3_ATTACHMENT_HASH, largeAttachment.getHash());
+        }
+        return a;
+    }
+
     @Override
     public boolean begin(Consumer consumer, Endpoint endpoint)
     {
@@ -257,44 +756,68 @@ public class Smev3Consumer extends ScheduledPollConsumer implements PollingConsu
     @Override
     public void commit(Consumer consumer, Endpoint endpoint, int polledMessages)
     {
+        PollContext context = pollContext.get();
+        if(context == null)
+            return;
+
+        if( ! context.worker)
+            backoff.completed(polledMessages, getDelay());
+
         try
         {
-            if(polledMessages > 0 && accepted != null && conf.getQueryInformation().getType() != ProcessingInformation.Type.STATUS)
+            if(polledMessages > 0 && context.accepted != null && conf.getQueryInformation().getType() != ProcessingInformation.Type.STATUS)
             {
                 if(LOGGER.isTraceEnabled())
                     LOGGER.trace("Ack SMEVMessage: ExchangeId = {} MessageId = {}",
-                            exchange.getExchangeId(),
-                            exchange.getMessage().getMessageId());
+                            context.exchange.getExchangeId(),
+                            context.exchange.getMessage().getMessageId());
 
-                wsTemplate.ack(message.getSMEVMetadata(), accepted); // true, если ЭП-СМЭВ прошла валидацию и сообщение передано ИС. false, если ЭП-СМЭВ отвергнута, и сообщение проигнорировано.
+                if(ackDispatcher != null)
+                    ackDispatcher.submit(context.message.getSMEVMetadata(), context.accepted);
+                else
+                    metrics.ws("ack", () -> { wsTemplate.ack(context.message.getSMEVMetadata(), context.accepted); return null; }); // true, если ЭП-СМЭВ прошла валидацию и сообщение передано ИС. false, если ЭП-СМЭВ отвергнута, и сообщение проигнорировано.
             }
         }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Ack SMEVMessage interrupted: ExchangeId = {} MessageId = {} SMEVMessageId = {}",
+                    context.exchange.getExchangeId(),
+                    context.exchange.getMessage().getMessageId(),
+                    context.message.getSMEVMetadata().getMessageIdentity().getMessageId());
+        }
         catch (SMEVException ex)
         {
             LOGGER.error("Ack SMEVMessage: ExchangeId = {} MessageId = {} SMEVMessageId = {} Exception = {}",
-                    exchange.getExchangeId(),
-                    exchange.getMessage().getMessageId(),
-                    message.getSMEVMetadata().getMessageIdentity().getMessageId(),
+                    context.exchange.getExchangeId(),
+                    context.exchange.getMessage().getMessageId(),
+                    context.message.getSMEVMetadata().getMessageIdentity().getMessageId(),
                     Smev3Constants.toLine(Smev3Constants.printException(ex)));
         }
         finally
         {
-            accepted = null;
+            pollContext.remove();
         }
     }
 
     @Override
     public boolean rollback(Consumer consumer, Endpoint endpoint, int retryCounter, Exception cause) throws Exception
     {
-        if(exchange != null)
+        PollContext context = pollContext.get();
+        pollContext.remove();
+        metrics.rollback();
+
+        if(context != null && context.exchange != null)
         {
             LOGGER.error("Rollback SMEVMessage: ExchangeId = {} MessageId = {} Exception = {}",
-                    exchange.getExchangeId(),
-                    exchange.getMessage().getMessageId(),
+                    context.exchange.getExchangeId(),
+                    context.exchange.getMessage().getMessageId(),
                     Smev3Constants.toLine(Smev3Constants.printException(cause)));
         }
 
-        Thread.sleep(conf.getErrorDelay());
+        // Ошибка до получения сообщения (wsTemplate.get) - транспортная, иначе ошибка обработки
+        if(context == null || ! context.worker)
+            backoff.failed(context == null || context.exchange == null);
 
         return false; // false = no retry
     }
@@ -1,13 +1,16 @@
 package org.apache.camel.component.smev3;
 
 import org.apache.camel.*;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
 import org.apache.camel.spi.UriEndpoint;
 import org.apache.camel.support.ScheduledPollEndpoint;
+import org.apache.camel.util.URISupport;
 
 @UriEndpoint(firstVersion = "1.3.0", scheme = "smev3", title = "SMEV3", syntax = "smev3", category = { Category.MESSAGING } , headersClass = Smev3Constants.class)
 public class Smev3Endpoint extends ScheduledPollEndpoint
 {
     private Smev3Configuration conf;
+    private Smev3Metrics metrics;
 
     Smev3Endpoint(String uri, Smev3Component component, Smev3Configuration conf)
     {
@@ -15,6 +18,20 @@ public class Smev3Endpoint extends ScheduledPollEndpoint
         this.conf = conf;
     }
 
+    @Override
+    public Smev3Component getComponent()
+    {
+        return (Smev3Component) super.getComponent();
+    }
+
+    synchronized Smev3Metrics getMetrics()
+    {
+        if(metrics == null)
+            metrics = new Smev3Metrics(getComponent().getMeterRegistry(), URISupport.sanitizeUri(getEndpointUri()), conf.getSmevVersion().getValue());
+
+        return metrics;
+    }
+
     @Override
     public Consumer createConsumer(Processor processor) throws Exception
     {
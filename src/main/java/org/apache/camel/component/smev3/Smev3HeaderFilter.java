@@ -0,0 +1,76 @@
+package org.apache.camel.component.smev3;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// Какие заголовки fillExchangeHeaders помещает в exchange: профиль, плюс includeHeaders, минус excludeHeaders.
+// lazy - трассировка и дамп исключения помещаются как LazyString (CharSequence) и формируются при первом обращении
+public class Smev3HeaderFilter
+{
+    public enum Profile
+    {
+        All, Minimal
+    }
+
+    public static final Smev3HeaderFilter ALL = new Smev3HeaderFilter(Profile.All, null, null, false);
+
+    private static final Set<String> MINIMAL = new HashSet<>(Arrays.asList(
+            Smev3Constants.SMEV3_MESSAGE_ID,
+            Smev3Constants.SMEV3_MESSAGE_REFERENCE_ID,
+            Smev3Constants.SMEV3_ORIGINAL_MESSAGEID,
+            Smev3Constants.SMEV3_MESSAGE_REPLYTO,
+            Smev3Constants.SMEV3_METADATA_TRANSACTION_CODE,
+            Smev3Constants.SMEV3_METADATA_IDTRANSPORT,
+            Smev3Constants.SMEV3_METADATA_STATUS,
+            Smev3Constants.SMEV3_EXCEPTION_CODE,
+            Smev3Constants.SMEV3_EXCEPTION_MESSAGE));
+
+    private final Profile profile;
+    private final Set<String> include;
+    private final Set<String> exclude;
+    private final boolean lazy;
+
+    public Smev3HeaderFilter(Profile profile, String include, String exclude)
+    {
+        this(profile, include, exclude, false);
+    }
+
+    public Smev3HeaderFilter(Profile profile, String include, String exclude, boolean lazy)
+    {
+        this.profile = profile;
+        this.include = parse(include);
+        this.exclude = parse(exclude);
+        this.lazy = lazy;
+    }
+
+    public boolean isLazy()
+    {
+        return lazy;
+    }
+
+    public boolean accept(String name)
+    {
+        if(exclude.contains(name))
+            return false;
+
+        return profile == Profile.All || MINIMAL.contains(name) || include.contains(name);
+    }
+
+    // Имена через запятую, с префиксом CamelSmev3 или без него
+    private static Set<String> parse(String names)
+    {
+        if(names == null || names.trim().isEmpty())
+            return Collections.emptySet();
+
+        Set<String> result = new HashSet<>();
+        for(String name : names.split(","))
+        {
+            name = name.trim();
+            if( ! name.isEmpty())
+                result.add(name.startsWith(Smev3Constants.SMEV3_HEADER_PREFIX) ? name : Smev3Constants.SMEV3_HEADER_PREFIX + name);
+        }
+        return result;
+    }
+}
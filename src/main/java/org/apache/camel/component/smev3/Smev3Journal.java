@@ -0,0 +1,497 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.attachment.Attachment;
+import org.apache.camel.attachment.AttachmentMessage;
+import org.apache.camel.attachment.DefaultAttachment;
+import org.apache.camel.component.smev3.utils.Journal;
+import org.apache.camel.component.smev3.utils.XMLContent;
+import org.apache.camel.converter.stream.ByteArrayInputStreamCache;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// Журнал exchange: тело, заголовки CamelSmev3* и вложения сохраняются до отправки (outbox) или обработки (staging)
+// и восстанавливаются в новый exchange, в том числе после перезапуска. Содержимое вложений хранится в файлах каталога data
+class Smev3Journal implements AutoCloseable
+{
+    private static final int VERSION = 1;
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final byte BODY_NULL = 0;
+    private static final byte BODY_STRING = 1;
+    private static final byte BODY_BYTES = 2;
+    private static final byte BODY_ELEMENT = 3;
+    private static final byte BODY_STREAM = 4;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_BOOLEAN = 2;
+    private static final byte VALUE_INTEGER = 3;
+    private static final byte VALUE_LONG = 4;
+    private static final byte VALUE_BYTES = 5;
+    private static final byte VALUE_CALENDAR = 6;
+    private static final byte VALUE_ENUM = 7;
+    private static final byte VALUE_ELEMENT = 8;
+    private static final byte VALUE_SERIALIZABLE = 9;
+
+    private final Journal journal;
+    private final Journal.Sync sync;
+    private final Path data;
+    private final Path failed;
+
+    static final class Entry
+    {
+        private final Journal.Record record;
+        private final List<Path> files;
+
+        private Entry(Journal.Record record, List<Path> files)
+        {
+            this.record = record;
+            this.files = files;
+        }
+
+        long getId()
+        {
+            return record.getId();
+        }
+    }
+
+    Smev3Journal(Path directory, Journal.Sync sync, long syncInterval) throws IOException
+    {
+        this.journal = new Journal(directory, sync, syncInterval, SEGMENT_SIZE);
+        this.sync = sync;
+        this.data = directory.resolve("data");
+        this.failed = directory.resolve("failed");
+        Files.createDirectories(data);
+    }
+
+    // Восстановленные записи; файлы вложений, не относящиеся к ним, удаляются (сбой между записью вложений и журнала)
+    List<Entry> recover() throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        Set<Path> referenced = new HashSet<>();
+        for(Journal.Record record : journal.recovered())
+        {
+            Entry entry = new Entry(record, files(journal.read(record)));
+            referenced.addAll(entry.files);
+            entries.add(entry);
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(data))
+        {
+            for(Path path : stream)
+                if( ! referenced.contains(path))
+                    Files.deleteIfExists(path);
+        }
+        return entries;
+    }
+
+    int pending()
+    {
+        return journal.pending();
+    }
+
+    Entry write(Exchange exchange, boolean omitXMLDeclaration) throws Exception
+    {
+        List<Path> files = new ArrayList<>();
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+
+            Message message = exchange.getMessage();
+            writeBody(out, exchange, message.getBody(), omitXMLDeclaration);
+
+            List<Map.Entry<String, Object>> headers = new ArrayList<>();
+            for(Map.Entry<String, Object> header : message.getHeaders().entrySet())
+                if(header.getKey().startsWith(Smev3Constants.SMEV3_HEADER_PREFIX) && header.getValue() != null)
+                    headers.add(header);
+
+            out.writeInt(headers.size());
+            for(Map.Entry<String, Object> header : headers)
+            {
+                out.writeUTF(header.getKey());
+                writeValue(out, header.getValue());
+            }
+
+            AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
+            Map<String, Attachment> attachments = attachmentMessage != null && attachmentMessage.hasAttachments() ? attachmentMessage.getAttachmentObjects() : Map.of();
+            out.writeInt(attachments.size());
+            for(Map.Entry<String, Attachment> el : attachments.entrySet())
+            {
+                Path file = data.resolve(UUID.randomUUID() + ".bin");
+                files.add(file);
+                copy(el.getValue().getDataHandler(), file);
+
+                List<String> names = new ArrayList<>();
+                for(String name : el.getValue().getHeaderNames())
+                    if(el.getValue().getHeader(name) != null)
+                        names.add(name);
+
+                out.writeUTF(el.getKey());
+                out.writeUTF(file.getFileName().toString());
+                out.writeInt(names.size());
+                for(String name : names)
+                {
+                    out.writeUTF(name);
+                    out.writeUTF(el.getValue().getHeader(name));
+                }
+            }
+
+            out.flush();
+            return new Entry(journal.append(bytes.toByteArray()), files);
+        }
+        catch (Exception ex)
+        {
+            for(Path file : files)
+                Files.deleteIfExists(file);
+            throw ex;
+        }
+    }
+
+    // Тело, заголовки и вложения записи помещаются в exchange. Вложения читаются из файлов журнала до complete
+    void read(Entry entry, Exchange exchange) throws Exception
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal.read(entry.record))))
+        {
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported journal record version: " + version);
+
+            Message message = exchange.getMessage();
+            message.setBody(readBody(in));
+
+            int headers = in.readInt();
+            for(int i = 0; i < headers; i++)
+                message.setHeader(in.readUTF(), readValue(in));
+
+            int attachments = in.readInt();
+            if(attachments > 0)
+            {
+                AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
+                for(int i = 0; i < attachments; i++)
+                {
+                    String id = in.readUTF();
+                    Attachment attachment = new DefaultAttachment(new DataHandler(new FileDataSource(data.resolve(in.readUTF()).toFile())));
+                    int names = in.readInt();
+                    for(int j = 0; j < names; j++)
+                        attachment.setHeader(in.readUTF(), in.readUTF());
+                    attachmentMessage.addAttachmentObject(id, attachment);
+                }
+            }
+        }
+    }
+
+    void complete(Entry entry) throws IOException
+    {
+        journal.complete(entry.record);
+        for(Path file : entry.files)
+            Files.deleteIfExists(file);
+    }
+
+    // Запись и файлы ее вложений переносятся в каталог failed для ручного разбора, в журнале запись завершается
+    void fail(Entry entry) throws IOException
+    {
+        Files.createDirectories(failed);
+        Files.write(failed.resolve(entry.getId() + ".record"), journal.read(entry.record));
+        for(Path file : entry.files)
+            Files.move(file, failed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        journal.complete(entry.record);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        journal.close();
+    }
+
+    private void copy(DataHandler dataHandler, Path file) throws IOException
+    {
+        try (InputStream inputStream = dataHandler.getInputStream();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             OutputStream outputStream = Channels.newOutputStream(channel))
+        {
+            inputStream.transferTo(outputStream);
+            if(sync != Journal.Sync.None) // вложение должно быть на диске раньше записи журнала, которая на него ссылается
+                channel.force(false);
+        }
+    }
+
+    // Файлы вложений записи, тело и заголовки пропускаются без разбора
+    private List<Path> files(byte[] payload) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload)))
+        {
+            in.readInt();
+            if(in.readByte() != BODY_NULL)
+                skip(in);
+
+            int headers = in.readInt();
+            for(int i = 0; i < headers; i++)
+            {
+                in.readUTF();
+                byte type = in.readByte();
+                if(type == VALUE_BYTES || type == VALUE_STRING || type == VALUE_ELEMENT || type == VALUE_SERIALIZABLE)
+                    skip(in);
+                else if(type == VALUE_CALENDAR)
+                    in.readUTF();
+                else if(type == VALUE_ENUM)
+                {
+                    in.readUTF();
+                    in.readUTF();
+                }
+                else
+                    in.skipBytes(type == VALUE_BOOLEAN ? 1 : type == VALUE_INTEGER ? 4 : 8);
+            }
+
+            int attachments = in.readInt();
+            for(int i = 0; i < attachments; i++)
+            {
+                in.readUTF();
+                files.add(data.resolve(in.readUTF()));
+                int names = in.readInt();
+                for(int j = 0; j < names; j++)
+                {
+                    in.readUTF();
+                    in.readUTF();
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void skip(DataInputStream in) throws IOException
+    {
+        in.readFully(new byte[in.readInt()]);
+    }
+
+    private static void writeBody(DataOutputStream out, Exchange exchange, Object body, boolean omitXMLDeclaration) throws Exception
+    {
+        if(body == null)
+        {
+            out.writeByte(BODY_NULL);
+            return;
+        }
+
+        byte type;
+        byte[] bytes;
+        if(body instanceof String)
+        {
+            type = BODY_STRING;
+            bytes = ((String) body).getBytes(StandardCharsets.UTF_8);
+        }
+        else if(body instanceof Element || body instanceof Document)
+        {
+            type = BODY_ELEMENT;
+            bytes = XMLContent.toBytes(body instanceof Document ? ((Document) body).getDocumentElement() : (Element) body, omitXMLDeclaration);
+        }
+        else if(body instanceof InputStream)
+        {
+            type = BODY_STREAM;
+            bytes = exchange.getContext().getTypeConverter().mandatoryConvertTo(byte[].class, exchange, body);
+            exchange.getMessage().setBody(bytes); // поток прочитан
+        }
+        else
+        {
+            type = BODY_BYTES;
+            bytes = exchange.getContext().getTypeConverter().mandatoryConvertTo(byte[].class, exchange, body);
+        }
+
+        out.writeByte(type);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object readBody(DataInputStream in) throws Exception
+    {
+        byte type = in.readByte();
+        if(type == BODY_NULL)
+            return null;
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        switch(type)
+        {
+            case BODY_STRING:
+                return new String(bytes, StandardCharsets.UTF_8);
+            case BODY_ELEMENT:
+                return XMLContent.build(bytes); // содержимое уже преобразовано при записи в журнал
+            case BODY_STREAM:
+                return new ByteArrayInputStreamCache(new ByteArrayInputStream(bytes));
+            default:
+                return bytes;
+        }
+    }
+
+    // Значения заголовков восстанавливаются с тем же типом. CharSequence (LazyString) сохраняется строкой,
+    // прочие типы, кроме перечислимых, Element и Serializable, не поддерживаются
+    private static void writeValue(DataOutputStream out, Object value) throws Exception
+    {
+        if(value instanceof Boolean)
+        {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if(value instanceof Integer)
+        {
+            out.writeByte(VALUE_INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if(value instanceof Long)
+        {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        }
+        else if(value instanceof byte[])
+        {
+            out.writeByte(VALUE_BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        }
+        else if(value instanceof XMLGregorianCalendar)
+        {
+            out.writeByte(VALUE_CALENDAR);
+            out.writeUTF(((XMLGregorianCalendar) value).toXMLFormat());
+        }
+        else if(value instanceof CharSequence)
+        {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(VALUE_STRING);
+            out.writeInt(bytes.length); // заголовки с содержимым (ExceptionDump, PersonalSignature) длиннее 64 КБ writeUTF
+            out.write(bytes);
+        }
+        else if(value instanceof Enum)
+        {
+            out.writeByte(VALUE_ENUM);
+            out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+            out.writeUTF(((Enum<?>) value).name());
+        }
+        else if(value instanceof Element)
+        {
+            byte[] bytes = XMLContent.toBytes((Element) value, false);
+            out.writeByte(VALUE_ELEMENT);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if(value instanceof Serializable) // статус, исключение СМЭВ
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes))
+            {
+                objectOutputStream.writeObject(value);
+            }
+            out.writeByte(VALUE_SERIALIZABLE);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+        else
+            throw new IllegalArgumentException("Unsupported journal header type: (" + value.getClass().getName() + "). Must be String, Boolean, Integer, Long, byte[], XMLGregorianCalendar, Enum, Element or Serializable");
+    }
+
+    private static Object readValue(DataInputStream in) throws Exception
+    {
+        byte type = in.readByte();
+        switch(type)
+        {
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_INTEGER:
+                return in.readInt();
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_BYTES:
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case VALUE_CALENDAR:
+                return DatatypeFactory.newInstance().newXMLGregorianCalendar(in.readUTF());
+            case VALUE_STRING:
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            case VALUE_ENUM:
+                return readEnum(in.readUTF(), in.readUTF());
+            case VALUE_ELEMENT:
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return XMLContent.build(bytes);
+            }
+            case VALUE_SERIALIZABLE:
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream objectInputStream = new JournalObjectInputStream(new ByteArrayInputStream(bytes)))
+                {
+                    return objectInputStream.readObject();
+                }
+            }
+            default:
+                throw new IOException("Unexpected journal value type: " + type);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(String className, String name) throws ClassNotFoundException
+    {
+        Class type = Class.forName(className, false, Smev3Journal.class.getClassLoader());
+        return Enum.valueOf(type, name);
+    }
+
+    // Классы значений загружаются загрузчиком компоненты, а не первым загрузчиком приложения в стеке вызовов
+    private static final class JournalObjectInputStream extends ObjectInputStream
+    {
+        private JournalObjectInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            try
+            {
+                return Class.forName(desc.getName(), false, Smev3Journal.class.getClassLoader());
+            }
+            catch (ClassNotFoundException ex)
+            {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
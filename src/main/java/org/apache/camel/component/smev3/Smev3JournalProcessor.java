@@ -0,0 +1,177 @@
+package org.apache.camel.component.smev3;
+
+import io.micrometer.core.instrument.Gauge;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
+import org.apache.camel.spi.ExecutorServiceManager;
+import org.apache.camel.spi.ShutdownStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Обработка exchange из журнала отдельными потоками с повторами: outbox - отправка в СМЭВ, staging - обработка маршрутом
+// полученных и подтвержденных сообщений. Не обработанные до остановки записи обрабатываются после запуска
+class Smev3JournalProcessor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(Smev3JournalProcessor.class);
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private final String name;
+    private final Endpoint endpoint;
+    private final Smev3Journal journal;
+    private final Handler handler;
+    private final Smev3Metrics metrics;
+    private final boolean omitXMLDeclaration;
+    private final int retries;
+    private final int retryDelay;
+    private final BlockingQueue<Smev3Journal.Entry> queue = new LinkedBlockingQueue<>();
+    private final ExecutorServiceManager executorServiceManager;
+    private final ExecutorService executor;
+    private final Gauge pendingGauge;
+    private volatile boolean stopping;
+
+    interface Handler
+    {
+        void handle(Exchange exchange) throws Exception;
+    }
+
+    // name - outbox или staging, используется в именах потоков и метрик
+    Smev3JournalProcessor(Object source, String name, Endpoint endpoint, Smev3Journal journal, Handler handler, Smev3Metrics metrics,
+                          int threads, int retries, int retryDelay, boolean omitXMLDeclaration) throws IOException
+    {
+        this.name = name;
+        this.endpoint = endpoint;
+        this.journal = journal;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.omitXMLDeclaration = omitXMLDeclaration;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+        this.queue.addAll(journal.recover());
+        this.pendingGauge = metrics.journalPending(name, journal, Smev3Journal::pending);
+
+        this.executorServiceManager = endpoint.getCamelContext().getExecutorServiceManager();
+        this.executor = executorServiceManager.newFixedThreadPool(source, "Smev3" + Character.toUpperCase(name.charAt(0)) + name.substring(1), threads);
+
+        for(int i = 0; i < threads; i++)
+            executor.execute(this::run);
+    }
+
+    void submit(Exchange exchange) throws Exception
+    {
+        if(stopping)
+            throw new IllegalStateException("Journal processor " + name + " is stopped");
+
+        queue.add(journal.write(exchange, omitXMLDeclaration));
+    }
+
+    int pending()
+    {
+        return journal.pending();
+    }
+
+    // Текущие обработки завершаются, остальные записи остаются в журнале. Журнал закрывается после завершения потоков,
+    // но не позже таймаута остановки контекста: зависшая обработка не завершит запись, и она будет обработана повторно после запуска
+    void stop() throws IOException
+    {
+        stopping = true;
+        executorServiceManager.shutdownGraceful(executor);
+        try
+        {
+            ShutdownStrategy shutdownStrategy = endpoint.getCamelContext().getShutdownStrategy();
+            if( ! executor.awaitTermination(shutdownStrategy.getTimeout(), shutdownStrategy.getTimeUnit()))
+                LOGGER.warn("Journal {} stop: processing is still running after {} {}, closing the journal", name,
+                        shutdownStrategy.getTimeout(), shutdownStrategy.getTimeUnit());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt(); // закрытый журнал отклоняет complete, запись будет обработана повторно после запуска
+        }
+        finally
+        {
+            metrics.remove(pendingGauge);
+            journal.close();
+        }
+    }
+
+    private void run()
+    {
+        try
+        {
+            while( ! stopping && ! Thread.currentThread().isInterrupted())
+            {
+                Smev3Journal.Entry entry = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if(entry != null)
+                    process(entry);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(Smev3Journal.Entry entry) throws InterruptedException
+    {
+        for(int attempt = 0; ; attempt++)
+        {
+            Exchange exchange = endpoint.createExchange();
+            try
+            {
+                journal.read(entry, exchange);
+
+                if(LOGGER.isTraceEnabled())
+                    LOGGER.trace("Journal {} process: SMEVMessageId = {} Attempt = {}", name, getMessageId(exchange), attempt);
+
+                handler.handle(exchange);
+            }
+            catch (Exception ex)
+            {
+                if(attempt >= retries)
+                {
+                    metrics.journalFailed(name);
+                    LOGGER.error("Journal {} process: SMEVMessageId = {} Attempts = {} Exception = {}",
+                            name,
+                            getMessageId(exchange),
+                            attempt + 1,
+                            Smev3Constants.toLine(Smev3Constants.printException(ex)));
+                    try
+                    {
+                        journal.fail(entry);
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.error("Journal {} record {} failure: {}", name, entry.getId(), e.getMessage(), e);
+                    }
+                    return;
+                }
+
+                LOGGER.warn("Journal {} process: SMEVMessageId = {} Attempt = {} failure: {}", name, getMessageId(exchange), attempt, ex.getMessage());
+                if(stopping)
+                    return; // будет обработано после запуска
+                Thread.sleep(retryDelay * (attempt + 1L));
+                continue;
+            }
+
+            try
+            {
+                journal.complete(entry);
+            }
+            catch (IOException ex) // обработка выполнена, повторять нельзя
+            {
+                LOGGER.error("Journal {} record {} complete failure: {}", name, entry.getId(), ex.getMessage(), ex);
+            }
+            return;
+        }
+    }
+
+    private static String getMessageId(Exchange exchange)
+    {
+        return Smev3Constants.get(exchange, Smev3Constants.SMEV3_MESSAGE_ID, String.class);
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.camel.component.smev3;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+class Smev3PollBackoff
+{
+    private static final int MAX_EXPONENT = 30;
+    private final long idleMaxDelay;
+    private final long transportErrorDelay;
+    private final long processingErrorDelay;
+    private final long errorMaxDelay;
+    private final double jitter;
+    private int idlePolls;
+    private int transportErrors;
+    private int processingErrors;
+    private volatile long nextPollTime;
+
+    Smev3PollBackoff(Smev3Configuration conf)
+    {
+        this.idleMaxDelay = conf.getIdleMaxDelay();
+        this.transportErrorDelay = conf.getTransportErrorDelay();
+        this.processingErrorDelay = conf.getProcessingErrorDelay();
+        this.errorMaxDelay = conf.getErrorDelay();
+        this.jitter = conf.getBackoffJitter();
+    }
+
+    // Опрос пропускается планировщиком до nextPollTime, потоки не блокируются
+    boolean isPollAllowed()
+    {
+        return System.currentTimeMillis() >= nextPollTime;
+    }
+
+    // delay - интервал планировщика, уже выдерживаемый между опросами
+    synchronized void completed(int polledMessages, long delay)
+    {
+        transportErrors = 0;
+        processingErrors = 0;
+
+        if(polledMessages > 0 || idleMaxDelay <= delay)
+        {
+            idlePolls = 0;
+            nextPollTime = 0;
+        }
+        else
+            nextPollTime = System.currentTimeMillis() + next(delay, idleMaxDelay, idlePolls++) - delay;
+    }
+
+    synchronized void failed(boolean transportError)
+    {
+        idlePolls = 0;
+
+        if(transportError)
+            nextPollTime = System.currentTimeMillis() + next(transportErrorDelay, errorMaxDelay, transportErrors++);
+        else
+            nextPollTime = System.currentTimeMillis() + next(processingErrorDelay, errorMaxDelay, processingErrors++);
+    }
+
+    private long next(long initialDelay, long maxDelay, int attempt)
+    {
+        long delay = Math.min(initialDelay << Math.min(attempt, MAX_EXPONENT), maxDelay);
+        return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+}
@@ -1,23 +1,27 @@
 package org.apache.camel.component.smev3;
 
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
-import org.apache.camel.FailedToCreateConsumerException;
+import org.apache.camel.FailedToCreateProducerException;
+import org.apache.camel.ThreadPoolRejectedPolicy;
 import org.apache.camel.attachment.Attachment;
 import org.apache.camel.attachment.AttachmentMessage;
 import org.apache.camel.component.smev3.utils.ApacheFTPTransport;
-import org.apache.camel.support.DefaultProducer;
+import org.apache.camel.component.smev3.utils.AttachmentSignatureCache;
+import org.apache.camel.component.smev3.utils.SignerPool;
+import org.apache.camel.component.smev3.utils.Smev3Metrics;
+import org.apache.camel.component.smev3.utils.XMLContent;
+import org.apache.camel.spi.ThreadPoolProfile;
+import org.apache.camel.support.DefaultAsyncProducer;
+import org.apache.camel.support.MessageHelper;
 import org.apache.xerces.impl.dv.util.Base64;
 import org.apache.xml.utils.XMLChar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.*;
-import ru.voskhod.crypto.util.SmevTransformUtil;
-import ru.voskhod.crypto.util.XMLTransformHelper;
-import ru.voskhod.smev.client.api.factory.Factory;
 import ru.voskhod.smev.client.api.services.identification.IdentityService;
 import ru.voskhod.smev.client.api.services.signature.Signer;
 import ru.voskhod.smev.client.api.services.template.WSTemplate;
-import ru.voskhod.smev.client.api.signature.impl.SignerFactory;
 import ru.voskhod.smev.client.api.types.exception.SMEVException;
 import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
 import ru.voskhod.smev.client.api.types.exception.processing.SMEVSignatureException;
@@ -36,60 +40,185 @@ import ru.voskhod.smev.client.api.types.message.system.processing.ResponseInform
 
 import javax.activation.DataHandler;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXSource;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.DigestInputStream;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class Smev3Producer extends DefaultProducer
+public class Smev3Producer extends DefaultAsyncProducer
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(Smev3Producer.class);
     private final Smev3Configuration conf;
-    private final IdentityService identityService;
-    private final WSTemplate wsTemplate;
-    private final Signer signer;
-    private final ApacheFTPTransport laTransport;
+    private final Smev3Metrics metrics;
+    private ApacheFTPTransport laTransport;
+    private ExecutorService executor;
+    private Smev3Client client;
+    private IdentityService identityService;
+    private WSTemplate wsTemplate;
+    private SignerPool signerPool;
+    private AttachmentSignatureCache signatureCache;
+    private Smev3JournalProcessor outbox;
 
     Smev3Producer(Smev3Endpoint endpoint, Smev3Configuration conf)
     {
         super(endpoint);
         this.conf = conf;
+        this.metrics = endpoint.getMetrics();
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        // Пул FTP сессий компоненты закрывается при ее остановке и создается заново после запуска
+        laTransport = new ApacheFTPTransport(conf.getLargeAttachmentTransportConfiguration(), ((Smev3Endpoint) getEndpoint()).getComponent().getFtpClientPool(), metrics);
 
         try
         {
-            signer = SignerFactory.getSigner(
-                    conf.getSignerConfiguration(),
-                    conf.getSignerConfiguration().getCertificateAlias(),
-                    conf.getSignerConfiguration().getPrivateKeyAlias(),
-                    conf.getSignerConfiguration().getPrivateKeyPassword());
-            identityService = Factory.getIdentityGeneratorInstance(null, conf.getSmevVersion());
-            wsTemplate = Factory.getWsTemplateInstance(
-                    signer,
-                    Factory.getValidatorInstance(conf.getWSTemplateConfiguration().getValidatorConfig(), conf.getSmevVersion()),
-                    Factory.getMessageMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
-                    Factory.getMessageTransportInstance(conf.getGeoTemplateConfiguration().getGeoMessageTransportConfiguration(), conf.getSmevVersion()),
-                    Factory.getExceptionMapperInstance(conf.getWSTemplateConfiguration().getMessageGenerationConfig(), conf.getSmevVersion()),
-                    null, // must be null, use laTransport instead
-                    conf.getGeoTemplateConfiguration(),
-                    conf.getSmevVersion());
-            laTransport = new ApacheFTPTransport(conf.getLargeAttachmentTransportConfiguration());
+            client = ((Smev3Endpoint) getEndpoint()).getComponent().acquireClient(conf);
+            signerPool = client.getSignerPool();
+            identityService = client.getIdentityService();
+            wsTemplate = client.getWsTemplate();
+            signatureCache = client.getSignatureCache();
         }
         catch (SMEVRuntimeException e)
         {
-            throw new FailedToCreateConsumerException(endpoint, e);
+            throw new FailedToCreateProducerException(getEndpoint(), e);
+        }
+
+        super.doStart();
+        // maxInflight потоков отправки и очередь ожидающих, при заполненной очереди exchange завершается ошибкой без блокировки вызывающего потока
+        ThreadPoolProfile profile = new ThreadPoolProfile("Smev3Producer");
+        profile.setPoolSize(conf.getMaxInflight());
+        profile.setMaxPoolSize(conf.getMaxInflight());
+        profile.setMaxQueueSize(conf.getMaxInflightQueue());
+        profile.setRejectedPolicy(ThreadPoolRejectedPolicy.Abort);
+        executor = getEndpoint().getCamelContext().getExecutorServiceManager().newThreadPool(this, "Smev3Producer", profile);
+
+        if(conf.getOutbox() != null)
+        {
+            Smev3Journal journal = new Smev3Journal(Paths.get(conf.getOutbox()), conf.getJournalSync(), conf.getJournalSyncInterval());
+            try
+            {
+                outbox = new Smev3JournalProcessor(this, "outbox", getEndpoint(), journal, this::doProcess, metrics,
+                        conf.getOutboxThreads(), conf.getOutboxRetries(), conf.getOutboxRetryDelay(), conf.isOmitXMLDeclaration());
+            }
+            catch (Exception ex)
+            {
+                journal.close();
+                throw ex;
+            }
         }
     }
 
     @Override
-    public void process(final Exchange exchange) throws Exception
+    protected void doStop() throws Exception
+    {
+        if(outbox != null)
+        {
+            outbox.stop();
+            outbox = null;
+        }
+
+        if(executor != null)
+        {
+            getEndpoint().getCamelContext().getExecutorServiceManager().shutdownGraceful(executor);
+            executor = null;
+        }
+
+        if(client != null)
+        {
+            ((Smev3Endpoint) getEndpoint()).getComponent().releaseClient(client);
+            client = null;
+        }
+
+        super.doStop();
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback)
+    {
+        if(outbox != null)
+        {
+            try
+            {
+                // Идентификатор сообщения назначается до записи в журнал и не меняется при повторных отправках
+                if(Smev3Constants.get(exchange, Smev3Constants.SMEV3_MESSAGE_ID, String.class) == null)
+                    Smev3Constants.set(exchange, Smev3Constants.SMEV3_MESSAGE_ID, identityService.generateUUID());
+                outbox.submit(exchange);
+            }
+            catch (Exception ex)
+            {
+                exchange.setException(ex);
+            }
+            callback.done(true);
+            return true;
+        }
+
+        try
+        {
+            executor.execute(() -> {
+                try
+                {
+                    doProcess(exchange);
+                }
+                catch (Throwable ex)
+                {
+                    exchange.setException(ex);
+                }
+                finally
+                {
+                    callback.done(false);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) // очередь отправок заполнена
+        {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+
+        return false;
+    }
+
+    // Выгруженные на FTP вложения удаляются, если сообщение не отправлено: повторная отправка (outbox) выгружает их заново
+    // под новыми UUID, и иначе на FTP остаются каталоги каждой неудачной попытки
+    private void doProcess(final Exchange exchange) throws Exception
     {
+        List<Runnable> uploaded = Collections.synchronizedList(new ArrayList<>());
+        try
+        {
+            doProcess(exchange, uploaded);
+        }
+        catch (Exception ex)
+        {
+            for(Runnable delete : uploaded)
+                delete.run();
+            throw ex;
+        }
+    }
+
+    private void doProcess(final Exchange exchange, List<Runnable> uploaded) throws Exception
+    {
+        // extractBodyAsString заменяет тело-поток на StreamCache, и getContent читает его повторно
         if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
             LOGGER.trace("Process exchange: ExchangeId = {} MessageId = {} Headers = {} Properties = {} Body = {}",
                         exchange.getExchangeId(),
                         exchange.getMessage().getMessageId(),
                         exchange.getMessage().getHeaders(),
                         exchange.getProperties(),
-                        Smev3Constants.toLine(exchange.getMessage().getBody(String.class)));
+                        Smev3Constants.toLine(MessageHelper.extractBodyAsString(exchange.getMessage())));
 
         if(conf.getBodyType().equals(Smev3Configuration.Smev3BodyType.Content))
         {
@@ -112,14 +241,14 @@ public class Smev3Producer extends DefaultProducer
                 String nodeId = Smev3Constants.get(exchange, Smev3Constants.SMEV3_METADATA_NODEID, String.class);
                 Element content = getContent(exchange.getMessage().getBody());
                 SMEVMetadata smevMetadata = new SMEVMetadata(messageIdentity, new RequestInformation(messageId, eol, nodeId, testMessage));
-                RequestContent businessContent = new RequestContent(content, signer.sign(content), getAttachments(exchange), businessProcessMetadata, registryAttachments);
+                RequestContent businessContent = new RequestContent(content, sign(content), getAttachments(exchange, uploaded), businessProcessMetadata, registryAttachments);
                 sendAndProcessResult(exchange, new SMEVMessage(smevMetadata, businessContent));
             }
             else if (conf.getMode().equals(Smev3Configuration.Smev3Mode.Response))
             {
                 Element content = getContent(exchange.getMessage().getBody());
                 SMEVMetadata smevMetadata = new SMEVMetadata(messageIdentity, new ResponseInformation(messageId, originalMessageId, replyTo));
-                ResponseContent businessContent = new ResponseContent(content, signer.sign(content), getAttachments(exchange), businessProcessMetadata);
+                ResponseContent businessContent = new ResponseContent(content, sign(content), getAttachments(exchange, uploaded), businessProcessMetadata);
                 sendAndProcessResult(exchange, new SMEVMessage(smevMetadata, businessContent));
             }
             else if (conf.getMode().equals(Smev3Configuration.Smev3Mode.Status))
@@ -148,7 +277,7 @@ public class Smev3Producer extends DefaultProducer
                 SMEVContext smevContext = new SMEVContext(idTransport, null);
                 smevMetadata.setSmevContext(smevContext);
 
-                wsTemplate.ack(smevMetadata, accepted); // true, если ЭП-СМЭВ прошла валидацию и сообщение передано ИС. false, если ЭП-СМЭВ отвергнута, и сообщение проигнорировано.
+                metrics.ws("ack", () -> { wsTemplate.ack(smevMetadata, accepted); return null; }); // true, если ЭП-СМЭВ прошла валидацию и сообщение передано ИС. false, если ЭП-СМЭВ отвергнута, и сообщение проигнорировано.
             }
             else
                 throw new Exception("Unexpected mode"); // TODO log
@@ -158,7 +287,7 @@ public class Smev3Producer extends DefaultProducer
             SMEVMessage message = exchange.getMessage().getBody(SMEVMessage.class);
 
             if(message.getData().getAttachments() != null)
-                message.getData().getAttachments().addAll(getAttachments(exchange));
+                message.getData().getAttachments().addAll(getAttachments(exchange, uploaded));
 
             sendAndProcessResult(exchange, message);
         }
@@ -173,8 +302,8 @@ public class Smev3Producer extends DefaultProducer
                          exchange.getExchangeId(),
                          exchange.getMessage().getMessageId());
 
-        SMEVMessage result = wsTemplate.send(message);
-        Smev3Constants.fillExchangeHeaders(exchange, result.getSMEVMetadata());
+        SMEVMessage result = metrics.ws("send", () -> wsTemplate.send(message));
+        Smev3Constants.fillExchangeHeaders(exchange, result.getSMEVMetadata(), conf.getHeaderFilter());
 
         if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
             LOGGER.trace("Process exchange after send: ExchangeId = {} MessageId = {} Headers = {} Properties = {} Body = {}",
@@ -182,10 +311,55 @@ public class Smev3Producer extends DefaultProducer
                     exchange.getMessage().getMessageId(),
                     exchange.getMessage().getHeaders(),
                     exchange.getProperties(),
-                    Smev3Constants.toLine(exchange.getMessage().getBody(String.class)));
+                    Smev3Constants.toLine(MessageHelper.extractBodyAsString(exchange.getMessage())));
+    }
+
+    private Element sign(Element content) throws Exception
+    {
+        return signerPool.execute(signer -> metrics.sign("content", () -> signer.sign(content)));
+    }
+
+    private byte[] signPKCS7Detached(byte[] checkSum) throws SMEVSignatureException, SMEVRuntimeException
+    {
+        return signerPool.execute(signer -> metrics.sign("pkcs7", () -> signer.signPKCS7Detached(checkSum)));
+    }
+
+    // DigestInputStream использует состояние Signer, поэтому Signer занят до получения хэша через signer.getDigest
+    private static byte[] digest(Signer signer, InputStream inputStream) throws IOException, SMEVSignatureException, SMEVRuntimeException
+    {
+        try (DigestInputStream digestInputStream = signer.getDigestInputStream(inputStream))
+        {
+            return signer.getDigest(digestInputStream);
+        }
     }
 
-    private Element getContent(Object body) throws Exception
+    // Хэш считается в процессе выгрузки на FTP тем же Signer, вложение читается один раз
+    private byte[] digestAndUpload(Signer signer, InputStream inputStream, UUID attachmentUUId, String attachmentName,
+                                   LargeAttachment.TransportDetails transportDetails) throws IOException, SMEVSignatureException, SMEVRuntimeException
+    {
+        try (DigestInputStream digestInputStream = signer.getDigestInputStream(inputStream);
+             BufferedInputStream bufferedInputStream = new BufferedInputStream(digestInputStream))
+        {
+            laTransport.upload(attachmentUUId, attachmentName, transportDetails, bufferedInputStream);
+            return signer.getDigest(digestInputStream);
+        }
+    }
+
+    private byte[] signAttachment(byte[] checkSum) throws SMEVSignatureException, SMEVRuntimeException
+    {
+        if(signatureCache == null)
+            return signPKCS7Detached(checkSum);
+
+        byte[] signature = signatureCache.getSignature(checkSum);
+        if(signature == null)
+        {
+            signature = signPKCS7Detached(checkSum);
+            signatureCache.putSignature(checkSum, signature);
+        }
+        return signature;
+    }
+
+    static Element getContent(Object body) throws Exception
     {
         Element content;
         if(body instanceof Element)
@@ -198,16 +372,40 @@ public class Smev3Producer extends DefaultProducer
         }
         else if(body instanceof String)
         {
-            body = new String(SmevTransformUtil.transform(((String) body).getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
-            content = XMLTransformHelper.buildDocumentFromString((String) body).getDocumentElement();
+            content = XMLContent.parse(((String) body).getBytes(StandardCharsets.UTF_8));
+        }
+        else if(body instanceof byte[])
+        {
+            content = XMLContent.parse((byte[]) body);
+        }
+        else if(body instanceof InputStream)
+        {
+            content = XMLContent.parse((InputStream) body);
+        }
+        else if(body instanceof DOMSource && ((DOMSource) body).getNode() instanceof Document)
+        {
+            content = ((Document) ((DOMSource) body).getNode()).getDocumentElement();
+        }
+        else if(body instanceof DOMSource && ((DOMSource) body).getNode() instanceof Element)
+        {
+            content = (Element) ((DOMSource) body).getNode();
+        }
+        else if(body instanceof Source)
+        {
+            content = XMLContent.parse((Source) body);
+        }
+        else if(body instanceof XMLStreamReader)
+        {
+            content = XMLContent.parse(new StAXSource((XMLStreamReader) body));
         }
         else
-            throw new Exception(); // TODO log
+            throw new Exception("Unexpected body type: " + (body == null ? null : body.getClass().getName())); // TODO log
 
         return content;
     }
 
-    private List<SMEVAttachment> getAttachments(Exchange exchange) throws IOException, SMEVSignatureException, SMEVRuntimeException
+    // uploaded - удаление выгруженных на FTP вложений, выполняется вызывающим при ошибке подготовки или отправки
+    private List<SMEVAttachment> getAttachments(Exchange exchange, List<Runnable> uploaded) throws Exception
     {
         List<SMEVAttachment> attachments = new ArrayList<>();
         AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
@@ -220,67 +418,149 @@ public class Smev3Producer extends DefaultProducer
 
         if(attachmentMessage != null && attachmentMessage.hasAttachments())
         {
-            for(Map.Entry<String, Attachment> el : attachmentMessage.getAttachmentObjects().entrySet())
+            ExecutorService attachmentsExecutor = conf.isParallelAttachmentUploads() ? ((Smev3Endpoint) getEndpoint()).getComponent().getAttachmentsExecutor() : null;
+            AtomicBoolean cancelled = new AtomicBoolean();
+            List<Future<SMEVAttachment>> futures = new ArrayList<>();
+
+            try
             {
-                Attachment attachment = el.getValue();
+                for(Map.Entry<String, Attachment> el : attachmentMessage.getAttachmentObjects().entrySet())
+                {
+                    Attachment attachment = el.getValue();
 
-                if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
-                    LOGGER.trace("Process exchange attachment: ExchangeId = {} MessageId = {} Attachment = {} Headers = {}",
-                                 exchange.getExchangeId(),
-                                 exchange.getMessage().getMessageId(),
-                                 el.getKey(),
-                                 Smev3Constants.toString(attachment));
+                    if(LOGGER.isTraceEnabled() && exchange.getMessage() != null)
+                        LOGGER.trace("Process exchange attachment: ExchangeId = {} MessageId = {} Attachment = {} Headers = {}",
+                                     exchange.getExchangeId(),
+                                     exchange.getMessage().getMessageId(),
+                                     el.getKey(),
+                                     Smev3Constants.toString(attachment));
 
-                DataHandler dataHandler = attachment.getDataHandler();
-                int length = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, conf.getLargeAttachmentThreshold(), Integer.class);
-                String attachmentName = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_NAME, el.getKey(), String.class);
+                    if(attachmentsExecutor != null)
+                        futures.add(attachmentsExecutor.submit(() -> getAttachment(el.getKey(), attachment, uploaded, cancelled)));
+                    else
+                        attachments.add(getAttachment(el.getKey(), attachment, uploaded, cancelled));
+                }
 
-                try(InputStream inputStream = dataHandler.getInputStream();
-                    DigestInputStream digestInputStream = signer.getDigestInputStream(inputStream))
+                for(Future<SMEVAttachment> future : futures) // в порядке следования вложений
                 {
-                    SMEVAttachment smevAttachment;
-                    String mimeType = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_MIMETYPE, "application/stream", String.class);
-                    byte[] checkSum = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_HASH, signer.getDigest(digestInputStream), byte[].class);
-                    byte[] signature = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, signer.signPKCS7Detached(checkSum), byte[].class);
-                    String attachmentId = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_UUID, attachmentName, String.class);
-
-                    if (length >= conf.getLargeAttachmentThreshold() || // Если вложение слишком большое
-                        XMLChar.isValidNCName(attachmentId) == false) // Обработка "фичи" СМЭВ3, что имя или идентификатор вложения для MTOM должен быть NCName
+                    try
                     {
-                        UUID attachmentUUId = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_UUID, identityService.generateAttachmentUUID(), UUID.class);
-
-                        smevAttachment = new LargeAttachment(
-                                mimeType,
-                                signature,
-                                Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, null, String.class),
-                                attachmentUUId,
-                                null, // Must be null
-                                Base64.encode(checkSum).getBytes(),
-                                new LargeAttachment.TransportDetails(conf.getLargeAttachmentTransportConfiguration().getLogin(), conf.getLargeAttachmentTransportConfiguration().getPass()),
-                                attachmentName
-                        );
-
-                        try (InputStream tmpIn = dataHandler.getInputStream(); 
-                             BufferedInputStream tmpBis = new BufferedInputStream(tmpIn))
-                        {
-                            laTransport.upload((LargeAttachment) smevAttachment, tmpBis);
-                        }
+                        attachments.add(future.get());
                     }
-                    else
+                    catch (ExecutionException ex)
                     {
-                        smevAttachment = new MTOMAttachment(
-                                mimeType,
-                                signature,
-                                Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, null, String.class),
-                                attachmentId,
-                                dataHandler
-                        );
+                        throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
                     }
-
-                    attachments.add(smevAttachment);
                 }
             }
+            catch (Exception ex)
+            {
+                // Не начатые задачи завершаются сразу, начатые дожидаемся, чтобы вызывающий удалил все выгруженные ими вложения
+                cancelled.set(true);
+                for(Future<SMEVAttachment> future : futures)
+                    try { future.get(); } catch (Exception ignore) { }
+                throw ex;
+            }
         }
         return attachments;
     }
+
+    private SMEVAttachment getAttachment(String key, Attachment attachment, List<Runnable> uploaded, AtomicBoolean cancelled) throws Exception
+    {
+        if(cancelled.get())
+            throw new CancellationException("Attachment \"" + key + "\" cancelled");
+
+        DataHandler dataHandler = attachment.getDataHandler();
+        int length = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, conf.getLargeAttachmentThreshold(), Integer.class);
+        String attachmentName = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_NAME, key, String.class);
+        String mimeType = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_MIMETYPE, "application/stream", String.class);
+        String attachmentId = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_UUID, attachmentName, String.class);
+        String passportId = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_PASSPORTID, null, String.class);
+        // Хэш и подпись вычисляются только если не переданы в заголовках вложения
+        byte[] checkSum = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_HASH, null, byte[].class);
+        byte[] signature = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_SIGNATUREPKCS7, null, byte[].class);
+        SMEVAttachment smevAttachment;
+
+        // Для файла, отправленного ранее, хэш и подпись берутся из кэша
+        AttachmentSignatureCache.Entry cached = signatureCache != null && checkSum == null ? signatureCache.getFile(dataHandler) : null;
+        boolean cacheable = signatureCache != null && checkSum == null && signature == null && cached == null;
+        if(cached != null)
+        {
+            checkSum = cached.getDigest();
+            if(signature == null)
+                signature = cached.getSignature();
+        }
+
+        if (length >= conf.getLargeAttachmentThreshold() || // Если вложение слишком большое
+            XMLChar.isValidNCName(attachmentId) == false) // Обработка "фичи" СМЭВ3, что имя или идентификатор вложения для MTOM должен быть NCName
+        {
+            UUID attachmentUUId = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_UUID, null, UUID.class);
+            if(attachmentUUId == null)
+                attachmentUUId = identityService.generateAttachmentUUID();
+
+            LargeAttachment.TransportDetails transportDetails = new LargeAttachment.TransportDetails(conf.getLargeAttachmentTransportConfiguration().getLogin(), conf.getLargeAttachmentTransportConfiguration().getPass());
+
+            if(cancelled.get())
+                throw new CancellationException("Attachment \"" + key + "\" cancelled");
+
+            UUID uploadedUUId = attachmentUUId;
+            uploaded.add(() -> laTransport.delete(uploadedUUId, attachmentName, transportDetails)); // в том числе после неудачной выгрузки
+
+            try (InputStream inputStream = dataHandler.getInputStream())
+            {
+                if(checkSum == null)
+                    checkSum = signerPool.execute(signer -> digestAndUpload(signer, inputStream, uploadedUUId, attachmentName, transportDetails));
+                else
+                {
+                    try (BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream))
+                    {
+                        laTransport.upload(attachmentUUId, attachmentName, transportDetails, bufferedInputStream);
+                    }
+                }
+            }
+
+            if(signature == null)
+                signature = signAttachment(checkSum);
+
+            smevAttachment = new LargeAttachment(
+                    mimeType,
+                    signature,
+                    passportId,
+                    attachmentUUId,
+                    null, // Must be null
+                    Base64.encode(checkSum).getBytes(),
+                    transportDetails,
+                    attachmentName
+            );
+        }
+        else
+        {
+            if(signature == null)
+            {
+                if(checkSum == null)
+                {
+                    try (InputStream inputStream = dataHandler.getInputStream())
+                    {
+                        checkSum = signerPool.execute(signer -> digest(signer, inputStream));
+                    }
+                }
+
+                signature = signAttachment(checkSum);
+            }
+
+            smevAttachment = new MTOMAttachment(
+                    mimeType,
+                    signature,
+                    passportId,
+                    attachmentId,
+                    dataHandler
+            );
+        }
+
+        if(cacheable)
+            signatureCache.putFile(dataHandler, checkSum, signature);
+
+        metrics.attachment("out", smevAttachment instanceof MTOMAttachment ? "mtom" : "large", Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, null, Long.class));
+        return smevAttachment;
+    }
 }
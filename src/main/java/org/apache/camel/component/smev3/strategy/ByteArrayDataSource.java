@@ -1,8 +1,6 @@
 package org.apache.camel.component.smev3.strategy;
 
 import javax.activation.DataSource;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -10,13 +8,19 @@ public final class ByteArrayDataSource implements DataSource
 {
     private String name;
     private String contentType;
-    private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private final ChunkedBuffer buffer;
 
 
     public ByteArrayDataSource(String name, String contentType)
+    {
+        this(name, contentType, false);
+    }
+
+    public ByteArrayDataSource(String name, String contentType, boolean direct)
     {
         this.name = name;
         this.contentType = contentType;
+        this.buffer = new ChunkedBuffer(direct);
     }
 
     public String getContentType()
@@ -26,7 +30,7 @@ public final class ByteArrayDataSource implements DataSource
 
     public InputStream getInputStream()
     {
-        return new ByteArrayInputStream(outputStream.toByteArray());
+        return buffer.getInputStream();
     }
 
     public String getName()
@@ -36,6 +40,16 @@ public final class ByteArrayDataSource implements DataSource
 
     public OutputStream getOutputStream()
     {
-        return outputStream;
+        return buffer;
+    }
+
+    public long getLength()
+    {
+        return buffer.length();
+    }
+
+    public void release()
+    {
+        buffer.release();
     }
 }
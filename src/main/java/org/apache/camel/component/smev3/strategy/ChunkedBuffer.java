@@ -0,0 +1,192 @@
+package org.apache.camel.component.smev3.strategy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public final class ChunkedBuffer extends OutputStream
+{
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 256; // не более 16 МБ свободных блоков каждого типа
+    private static final BlockingQueue<ByteBuffer> HEAP_CHUNKS = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
+    private static final BlockingQueue<ByteBuffer> DIRECT_CHUNKS = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
+
+    private final boolean direct;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long length;
+    private int readers; // открытые InputStream, блоки возвращаются в пул только после их закрытия
+    private boolean released;
+
+    public ChunkedBuffer(boolean direct)
+    {
+        this.direct = direct;
+    }
+
+    public synchronized long length()
+    {
+        return length;
+    }
+
+    @Override
+    public synchronized void write(int b)
+    {
+        current().put((byte) b);
+        length++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+    {
+        while(len > 0)
+        {
+            ByteBuffer chunk = current();
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    public synchronized InputStream getInputStream()
+    {
+        if(released)
+            throw new IllegalStateException("Buffer is already released");
+
+        readers++;
+        List<ByteBuffer> views = new ArrayList<>(chunks.size());
+        for(ByteBuffer chunk : chunks)
+        {
+            ByteBuffer view = chunk.asReadOnlyBuffer(); // без копирования данных
+            view.flip();
+            views.add(view);
+        }
+        return new ChunksInputStream(this, views);
+    }
+
+    // Ранее выданные InputStream остаются читаемыми до закрытия, новые получить нельзя
+    public synchronized void release()
+    {
+        released = true;
+        length = 0;
+        recycle();
+    }
+
+    private synchronized void closed()
+    {
+        readers--;
+        recycle();
+    }
+
+    private void recycle()
+    {
+        if( ! released || readers > 0)
+            return;
+
+        BlockingQueue<ByteBuffer> pool = direct ? DIRECT_CHUNKS : HEAP_CHUNKS;
+        chunks.forEach(pool::offer);
+        chunks.clear();
+    }
+
+    private ByteBuffer current()
+    {
+        if(released)
+            throw new IllegalStateException("Buffer is already released");
+
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if(chunk == null || ! chunk.hasRemaining())
+        {
+            chunk = (direct ? DIRECT_CHUNKS : HEAP_CHUNKS).poll();
+            if(chunk == null)
+                chunk = direct ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+            chunk.clear();
+            chunks.add(chunk);
+        }
+        return chunk;
+    }
+
+    private static final class ChunksInputStream extends InputStream
+    {
+        private final ChunkedBuffer owner;
+        private final List<ByteBuffer> chunks;
+        private int index;
+        private boolean closed;
+
+        private ChunksInputStream(ChunkedBuffer owner, List<ByteBuffer> chunks)
+        {
+            this.owner = owner;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void close()
+        {
+            if(closed)
+                return;
+            closed = true;
+            index = chunks.size();
+            owner.closed();
+        }
+
+        private ByteBuffer current()
+        {
+            while(index < chunks.size())
+            {
+                ByteBuffer chunk = chunks.get(index);
+                if(chunk.hasRemaining())
+                    return chunk;
+                index++;
+            }
+            return null;
+        }
+
+        @Override
+        public int read()
+        {
+            ByteBuffer chunk = current();
+            return chunk == null ? -1 : chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(len == 0)
+                return 0;
+
+            ByteBuffer chunk = current();
+            if(chunk == null)
+                return -1;
+
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = 0;
+            ByteBuffer chunk;
+            while(skipped < n && (chunk = current()) != null)
+            {
+                int step = (int) Math.min(n - skipped, chunk.remaining());
+                chunk.position(chunk.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            long available = 0;
+            for(int i = index; i < chunks.size(); i++)
+                available += chunks.get(i).remaining();
+            return (int) Math.min(available, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.camel.component.smev3.strategy;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.attachment.Attachment;
+import org.apache.camel.component.smev3.Smev3Constants;
+
+import javax.activation.DataHandler;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HybridAttachmentsStrategy implements AttachmentsStrategy
+{
+    private static final String MESSAGE_BUDGET_PROPERTY = "CamelSmev3AttachmentsMemoryBudget";
+    private static final long DEFAULT_ATTACHMENT_THRESHOLD = 1024 * 1024;
+    private static final long DEFAULT_MESSAGE_THRESHOLD = 8 * 1024 * 1024;
+
+    private final String spillDirectory;
+    private final long attachmentThreshold;
+    private final long messageThreshold;
+
+    public HybridAttachmentsStrategy()
+    {
+        this(DEFAULT_ATTACHMENT_THRESHOLD, DEFAULT_MESSAGE_THRESHOLD);
+    }
+
+    public HybridAttachmentsStrategy(long attachmentThreshold, long messageThreshold)
+    {
+        this(Paths.get(System.getProperty("java.io.tmpdir"), "smev3", "hybridattachments").toString(), attachmentThreshold, messageThreshold);
+    }
+
+    public HybridAttachmentsStrategy(String spillDirectory, long attachmentThreshold, long messageThreshold)
+    {
+        this.spillDirectory = spillDirectory;
+        this.attachmentThreshold = attachmentThreshold;
+        this.messageThreshold = messageThreshold;
+    }
+
+    @Override
+    public DataHandler get(Exchange exchange, String messageId, String attachmentId, String attachmentName, String mimeType, byte[] signaturePKCS7, int current, int total) throws Exception
+    {
+        AtomicLong messageBudget = exchange.getProperty(MESSAGE_BUDGET_PROPERTY, AtomicLong.class); // память, оставшаяся на вложения сообщения
+        if(messageBudget == null)
+        {
+            messageBudget = new AtomicLong(messageThreshold);
+            exchange.setProperty(MESSAGE_BUDGET_PROPERTY, messageBudget);
+        }
+
+        return new DataHandler(new SpillingDataSource(attachmentName, mimeType, Paths.get(spillDirectory), attachmentThreshold, messageBudget));
+    }
+
+    @Override
+    public boolean process(Exchange exchange, Attachment attachment, DataHandler dataHandler) throws Exception
+    {
+        Smev3Constants.set(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, ((SpillingDataSource) dataHandler.getDataSource()).getLength());
+        return true;
+    }
+
+    @Override
+    public void done(DataHandler dataHandler) throws Exception
+    {
+        ((SpillingDataSource) dataHandler.getDataSource()).release();
+    }
+}
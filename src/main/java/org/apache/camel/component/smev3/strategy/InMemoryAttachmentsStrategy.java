@@ -4,29 +4,37 @@ import org.apache.camel.Exchange;
 import org.apache.camel.attachment.Attachment;
 import org.apache.camel.component.smev3.Smev3Constants;
 import javax.activation.DataHandler;
-import java.io.ByteArrayOutputStream;
 
 public class InMemoryAttachmentsStrategy implements AttachmentsStrategy
 {
+    private final boolean direct;
+
     public InMemoryAttachmentsStrategy()
     {
+        this(false);
+    }
+
+    public InMemoryAttachmentsStrategy(boolean direct)
+    {
+        this.direct = direct; // true - вложения хранятся вне heap (direct ByteBuffer)
     }
 
     @Override
     public DataHandler get(Exchange exchange, String messageId, String attachmentId, String attachmentName, String mimeType, byte[] signaturePKCS7, int current, int total) throws Exception
     {
-        return new DataHandler(new ByteArrayDataSource(attachmentName, mimeType));
+        return new DataHandler(new ByteArrayDataSource(attachmentName, mimeType, direct));
     }
 
     @Override
     public boolean process(Exchange exchange, Attachment attachment, DataHandler dataHandler) throws Exception
     {
-        Smev3Constants.set(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, ((ByteArrayOutputStream)((ByteArrayDataSource)dataHandler.getDataSource()).getOutputStream()).toByteArray().length);
+        Smev3Constants.set(attachment, Smev3Constants.SMEV3_ATTACHMENT_LENGTH, ((ByteArrayDataSource)dataHandler.getDataSource()).getLength());
         return true;
     }
 
     @Override
     public void done(DataHandler dataHandler) throws Exception
     {
+        ((ByteArrayDataSource) dataHandler.getDataSource()).release();
     }
 }
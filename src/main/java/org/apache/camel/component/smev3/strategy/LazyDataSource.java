@@ -0,0 +1,94 @@
+package org.apache.camel.component.smev3.strategy;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Вложение, содержимое которого записывается в dataHandler (полученный от AttachmentsStrategy при регистрации)
+// при первом чтении. Ошибка загрузки запоминается и повторяется при следующих чтениях
+public final class LazyDataSource implements DataSource
+{
+    public interface Loader
+    {
+        void load(DataHandler dataHandler) throws Exception;
+    }
+
+    private final String name;
+    private final String contentType;
+    private final DataHandler dataHandler;
+    private final Loader loader;
+    private boolean loaded;
+    private IOException failure;
+    private boolean released;
+
+    public LazyDataSource(String name, String contentType, DataHandler dataHandler, Loader loader)
+    {
+        this.name = name;
+        this.contentType = contentType;
+        this.dataHandler = dataHandler;
+        this.loader = loader;
+    }
+
+    public String getContentType()
+    {
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public InputStream getInputStream() throws IOException
+    {
+        return materialize().getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException
+    {
+        throw new IOException("Attachment \"" + name + "\" is read only");
+    }
+
+    public synchronized DataHandler materialize() throws IOException
+    {
+        if(released)
+            throw new IOException("Attachment \"" + name + "\" is already released");
+
+        if(failure != null) // источник (MTOM после moveTo, FTP) может быть уже недоступен, загрузка не повторяется
+            throw new IOException(failure.getMessage(), failure);
+
+        if( ! loaded)
+        {
+            try
+            {
+                loader.load(dataHandler);
+                loaded = true;
+            }
+            catch (IOException ex)
+            {
+                failure = ex;
+                throw ex;
+            }
+            catch (Exception ex)
+            {
+                failure = new IOException(ex.getMessage(), ex);
+                throw failure;
+            }
+        }
+        return dataHandler;
+    }
+
+    public synchronized boolean isMaterialized()
+    {
+        return loaded;
+    }
+
+    // Возвращает DataHandler для AttachmentsStrategy.done (в том числе не загруженный), дальнейшее чтение невозможно
+    public synchronized DataHandler release()
+    {
+        released = true;
+        return dataHandler;
+    }
+}
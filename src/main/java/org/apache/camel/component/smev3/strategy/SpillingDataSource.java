@@ -0,0 +1,166 @@
+package org.apache.camel.component.smev3.strategy;
+
+import javax.activation.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class SpillingDataSource implements DataSource
+{
+    private final String name;
+    private final String contentType;
+    private final Path spillDirectory;
+    private final long attachmentThreshold;
+    private final AtomicLong messageBudget;
+    private final ChunkedBuffer memory = new ChunkedBuffer(false);
+    private File file;
+    private OutputStream fileOutputStream;
+    private long length;
+    private boolean released;
+
+    public SpillingDataSource(String name, String contentType, Path spillDirectory, long attachmentThreshold, AtomicLong messageBudget)
+    {
+        this.name = name;
+        this.contentType = contentType;
+        this.spillDirectory = spillDirectory;
+        this.attachmentThreshold = attachmentThreshold;
+        this.messageBudget = messageBudget;
+    }
+
+    public String getContentType()
+    {
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException
+    {
+        if(released)
+            throw new IOException("Attachment \"" + name + "\" is already released");
+
+        if(file != null)
+            return new BufferedInputStream(Files.newInputStream(file.toPath()));
+        else
+            return memory.getInputStream();
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                SpillingDataSource.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                SpillingDataSource.this.close();
+            }
+        };
+    }
+
+    public synchronized long getLength()
+    {
+        return length;
+    }
+
+    public synchronized boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    public synchronized File getFile()
+    {
+        return file;
+    }
+
+    // Вызывается по завершении exchange, повторный вызов ничего не делает
+    public synchronized void release() throws IOException
+    {
+        if(released)
+            return;
+        released = true;
+
+        close();
+        messageBudget.addAndGet(memory.length());
+        memory.release();
+        if(file != null)
+        {
+            Files.deleteIfExists(file.toPath());
+            file = null;
+        }
+        length = 0;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        if(file == null)
+        {
+            if(length + len <= attachmentThreshold && reserve(len))
+            {
+                memory.write(b, off, len);
+                length += len;
+                return;
+            }
+            spill();
+        }
+        else if(fileOutputStream == null)
+            fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file.toPath(), StandardOpenOption.APPEND));
+
+        fileOutputStream.write(b, off, len);
+        length += len;
+    }
+
+    private boolean reserve(long len)
+    {
+        if(messageBudget.addAndGet(-len) >= 0)
+            return true;
+
+        messageBudget.addAndGet(len);
+        return false;
+    }
+
+    private void spill() throws IOException
+    {
+        Files.createDirectories(spillDirectory);
+        file = Files.createTempFile(spillDirectory, "smev3", ".tmp").toFile();
+        fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+
+        try (InputStream inputStream = memory.getInputStream())
+        {
+            inputStream.transferTo(fileOutputStream);
+        }
+
+        messageBudget.addAndGet(memory.length());
+        memory.release();
+    }
+
+    private synchronized void close() throws IOException
+    {
+        if(fileOutputStream != null)
+        {
+            fileOutputStream.close();
+            fileOutputStream = null;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.apache.camel.component.smev3.utils;
 
-import org.apache.commons.net.ftp.FTP;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPReply;
 import org.slf4j.Logger;
@@ -10,131 +11,391 @@ import ru.voskhod.smev.client.api.types.exception.SMEVException;
 import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
 import ru.voskhod.smev.client.api.types.message.attachment.LargeAttachment;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ApacheFTPTransport
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ApacheFTPTransport.class);
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int UPLOAD_REPLAY_WINDOW = 4 * 1024 * 1024; // не меньше данных, отправленных, но не записанных сервером
+    private static final long RETRY_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 30000;
+    private static final int SEGMENT_BUFFER_SIZE = 64 * 1024;
     private final LargeAttachmentTransportConfiguration config;
-    private final FTPClient ftpClient;
+    private final FTPClientPool pool;
+    private final Smev3Metrics metrics;
+    private final int segments;
+    private final long segmentMinSize;
+    private final ExecutorService segmentsExecutor;
 
-    public ApacheFTPTransport(LargeAttachmentTransportConfiguration config)
+    public ApacheFTPTransport(LargeAttachmentTransportConfiguration config, FTPClientPool pool, Smev3Metrics metrics)
+    {
+        this(config, pool, metrics, 1, 0, null);
+    }
+
+    // Загрузка в файл частями: файл не меньше segmentMinSize загружается в segments параллельных сессиях
+    public ApacheFTPTransport(LargeAttachmentTransportConfiguration config, FTPClientPool pool, Smev3Metrics metrics,
+                              int segments, long segmentMinSize, ExecutorService segmentsExecutor)
     {
         this.config = config;
-        this.ftpClient = new FTPClient();
+        this.pool = pool;
+        this.metrics = metrics;
+        this.segments = segments;
+        this.segmentMinSize = segmentMinSize;
+        this.segmentsExecutor = segmentsExecutor;
     }
 
-    private void connect(String login, String password) throws SMEVRuntimeException
+    public void download(LargeAttachment largeAttachment, OutputStream outputStream) throws SMEVException
     {
+        LargeAttachment.TransportDetails transportDetails = largeAttachment.getTransportDetails();
+        FTPClientPool.Key key = new FTPClientPool.Key(config.getAddress(), transportDetails.getUserName(), transportDetails.getPassword());
+        String fileRef = largeAttachment.getFileRef();
+
+        CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+
         try
         {
-            ftpClient.setControlEncoding("UTF-8");
-            String[] parts = config.getAddress().split(":", 2);
-            if(parts.length == 1)
-                ftpClient.connect(parts[0]);
-            else if(parts.length == 2)
-                ftpClient.connect(parts[0], Integer.parseInt(parts[1]));
-            else
-                throw new IllegalArgumentException("Invalid ftp address" + config.getAddress());
-
-            if( ! ftpClient.isAvailable())
-                throw new IOException(ftpClient.getReplyString());
+            execute(key, "download", fileRef, (ftpClient, attempt) -> {
+                ftpClient.setRestartOffset(countingOutputStream.getCount()); // продолжение с последнего полученного байта (REST)
+                if( ! ftpClient.retrieveFile(fileRef, countingOutputStream))
+                    throw failure(ftpClient, "download \"" + fileRef + "\" from: \"" + config.getAddress() + "\"");
+                return null;
+            });
 
-            LOGGER.debug("connected to: \"{}\"", config.getAddress());
-            ftpClient.enterLocalPassiveMode();
+            metrics.ftpBytes("download", countingOutputStream.getCount());
         }
         catch (Exception ex)
         {
-            LOGGER.error("connect to: \"{}\" failure: {}", new Object[]{ config.getAddress(), ex.getMessage(), ex });
+            LOGGER.error("{}", ex.getMessage(), ex);
             throw new SMEVRuntimeException(ex.getMessage(), ex);
         }
+    }
 
-        try
+    public void download(LargeAttachment largeAttachment, File file) throws SMEVException
+    {
+        LargeAttachment.TransportDetails transportDetails = largeAttachment.getTransportDetails();
+        FTPClientPool.Key key = new FTPClientPool.Key(config.getAddress(), transportDetails.getUserName(), transportDetails.getPassword());
+        String fileRef = largeAttachment.getFileRef();
+
+        if(segments > 1)
         {
-            if(ftpClient.login(login, password))
+            try
             {
-                if( ! FTPReply.isPositiveCompletion(ftpClient.getReplyCode()))
-                    LOGGER.debug("negative completion, because: {}", ftpClient.getReplyString());
-
-                ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+                long size = execute(key, "size", fileRef, (ftpClient, attempt) -> size(ftpClient, fileRef));
+                if(size >= segmentMinSize && size >= segments)
+                {
+                    downloadSegments(key, fileRef, file, size);
+                    return;
+                }
             }
-            else
-                throw new IOException(ftpClient.getReplyString());
+            catch (Exception ex)
+            {
+                LOGGER.error("{}", ex.getMessage(), ex);
+                throw new SMEVRuntimeException(ex.getMessage(), ex);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            AtomicLong position = new AtomicLong(); // записано в файл, с этой позиции продолжается загрузка после ошибки
+
+            execute(key, "download", fileRef, (ftpClient, attempt) -> {
+                ftpClient.setRestartOffset(position.get());
+                InputStream inputStream = ftpClient.retrieveFileStream(fileRef);
+                if(inputStream == null)
+                    throw failure(ftpClient, "download \"" + fileRef + "\" from: \"" + config.getAddress() + "\"");
+
+                try (ReadableByteChannel source = Channels.newChannel(inputStream))
+                {
+                    long transferred;
+                    while((transferred = channel.transferFrom(source, position.get(), TRANSFER_CHUNK_SIZE)) > 0)
+                        position.addAndGet(transferred);
+                }
+
+                if( ! ftpClient.completePendingCommand())
+                    throw failure(ftpClient, "download \"" + fileRef + "\" from: \"" + config.getAddress() + "\"");
+                return null;
+            });
 
+            metrics.ftpBytes("download", position.get());
         }
         catch (Exception ex)
         {
-            LOGGER.error("login failure: {}", ex.getMessage(), ex);
+            LOGGER.error("{}", ex.getMessage(), ex);
             throw new SMEVRuntimeException(ex.getMessage(), ex);
         }
     }
 
-    private void disconnect() throws SMEVRuntimeException
+    // Части загружаются в отдельных сессиях с REST на начало части и записываются в файл по своим позициям.
+    // Вызывающий поток сессию не занимает и только ожидает части, поэтому при нехватке сессий в пуле части ожидают свободную
+    private void downloadSegments(FTPClientPool.Key key, String fileRef, File file, long size) throws Exception
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            write(channel, ByteBuffer.allocate(1), size - 1); // файл сразу получает итоговый размер
+
+            long segmentSize = (size + segments - 1) / segments;
+            AtomicBoolean cancelled = new AtomicBoolean();
+            List<Future<?>> futures = new ArrayList<>(segments);
+            for(long start = 0; start < size; start += segmentSize)
+            {
+                long from = start;
+                long to = Math.min(size, start + segmentSize);
+                futures.add(segmentsExecutor.submit(() -> {
+                    try
+                    {
+                        downloadSegment(key, fileRef, channel, from, to, to == size, cancelled);
+                        return null;
+                    }
+                    catch (Exception ex)
+                    {
+                        cancelled.set(true); // остальные части прерываются
+                        throw ex;
+                    }
+                }));
+            }
+
+            Exception failure = null;
+            for(Future<?> future : futures) // канал закрывается только после завершения всех частей
+            {
+                try
+                {
+                    Uninterruptibles.getUninterruptibly(future);
+                }
+                catch (ExecutionException ex)
+                {
+                    Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    if(failure == null || failure instanceof CancellationException) // причина важнее прерывания остальных частей
+                        failure = cause;
+                }
+            }
+
+            if(failure != null)
+                throw failure;
+
+            metrics.ftpBytes("download", size);
+            LOGGER.debug("downloaded \"{}\" from: \"{}\" in {} segments", fileRef, config.getAddress(), futures.size());
+        }
+    }
+
+    private void downloadSegment(FTPClientPool.Key key, String fileRef, FileChannel channel, long start, long end, boolean last, AtomicBoolean cancelled) throws Exception
+    {
+        AtomicLong position = new AtomicLong(start);
+        byte[] buffer = new byte[SEGMENT_BUFFER_SIZE];
+
+        execute(key, "download", fileRef + " [" + start + ", " + end + ")", (ftpClient, attempt) -> {
+            ftpClient.setRestartOffset(position.get());
+            InputStream inputStream = ftpClient.retrieveFileStream(fileRef);
+            if(inputStream == null)
+                throw failure(ftpClient, "download \"" + fileRef + "\" from: \"" + config.getAddress() + "\"");
+
+            try
+            {
+                while(position.get() < end)
+                {
+                    if(cancelled.get())
+                        throw new CancellationException("download \"" + fileRef + "\" cancelled");
+
+                    int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position.get()));
+                    if(n < 0)
+                        throw new IOException("download \"" + fileRef + "\" from: \"" + config.getAddress() + "\" unexpected end of file at " + position.get());
+
+                    write(channel, ByteBuffer.wrap(buffer, 0, n), position.get()); // позиционная запись, потоки частей не мешают друг другу
+                    position.addAndGet(n);
+                }
+            }
+            finally
+            {
+                inputStream.close();
+            }
+
+            if(last)
+            {
+                if( ! ftpClient.completePendingCommand())
+                    throw failure(ftpClient, "download \"" + fileRef + "\" from: \"" + config.getAddress() + "\"");
+            }
+            else
+                ftpClient.disconnect(); // передача прервана на границе части, сессия не возвращается в пул
+            return null;
+        });
+    }
+
+    public void upload(LargeAttachment largeAttachment, InputStream inputStream) throws SMEVRuntimeException
     {
+        upload(largeAttachment.getUuid(), largeAttachment.getFileRef(), largeAttachment.getTransportDetails(), inputStream);
+    }
+
+    // Поток читается один раз. После ошибки выгрузка продолжается (APPE) с размера файла на сервере (SIZE),
+    // если он не меньше прочитанного за вычетом UPLOAD_REPLAY_WINDOW, иначе вложение выгружается заново, если это еще возможно
+    public void upload(UUID uuid, String fileRef, LargeAttachment.TransportDetails transportDetails, InputStream inputStream) throws SMEVRuntimeException
+    {
+        FTPClientPool.Key key = new FTPClientPool.Key(config.getAddress(), transportDetails.getUserName(), transportDetails.getPassword());
+        String dirName = uuid.toString();
+        String path = dirName + "/" + fileRef;
+
+        ReplayInputStream replayInputStream = new ReplayInputStream(inputStream, UPLOAD_REPLAY_WINDOW);
+
         try
         {
-            if(ftpClient.isConnected())
-                ftpClient.logout();
+            execute(key, "upload", path, (ftpClient, attempt) -> {
+                long offset = attempt > 1 ? size(ftpClient, path) : -1;
+                if(offset < 0) // файл еще не создан
+                {
+                    if( ! ftpClient.makeDirectory(dirName) && attempt == 1) // при повторе каталог уже может существовать
+                        throw failure(ftpClient, "create directory \"" + dirName + "\"");
+                    offset = 0;
+                }
 
-            ftpClient.disconnect();
-            LOGGER.debug("disconnect");
+                if( ! replayInputStream.rewind(offset))
+                    throw new PermanentFailureException("upload \"" + path + "\" to: \"" + config.getAddress() + "\" cannot be resumed from " + offset + ", read " + replayInputStream.getPosition());
+
+                boolean stored = offset == 0 ? ftpClient.storeFile(path, replayInputStream) : ftpClient.appendFile(path, replayInputStream);
+                if( ! stored)
+                    throw failure(ftpClient, "upload \"" + path + "\" to: \"" + config.getAddress() + "\"");
+                return null;
+            });
+
+            metrics.ftpBytes("upload", replayInputStream.getPosition());
         }
         catch (Exception ex)
         {
-            LOGGER.error("disconnect failure: {}", ex.getMessage(), ex);
-            //throw new SMEVRuntimeException(ex.getMessage(), ex);
+            LOGGER.error("{}", ex.getMessage(), ex);
+            throw new SMEVRuntimeException(ex.getMessage(), ex);
         }
     }
 
-    public void download(LargeAttachment largeAttachment, OutputStream outputStream) throws SMEVException
+    // Удаление выгруженного вложения и его каталога, ошибки только логируются
+    public void delete(UUID uuid, String fileRef, LargeAttachment.TransportDetails transportDetails)
     {
-        LargeAttachment.TransportDetails transportDetails = largeAttachment.getTransportDetails();
-        connect(transportDetails.getUserName(), transportDetails.getPassword());
+        FTPClientPool.Key key = new FTPClientPool.Key(config.getAddress(), transportDetails.getUserName(), transportDetails.getPassword());
+        String dirName = uuid.toString();
 
         try
         {
-            if( ! ftpClient.retrieveFile(largeAttachment.getFileRef(), outputStream))
-                throw new IOException("download \"" + largeAttachment.getFileRef() + "\" from: \"" + config.getAddress() + "\" failure: " + ftpClient.getReplyString());
+            execute(key, "delete", dirName + "/" + fileRef, (ftpClient, attempt) -> {
+                if( ! ftpClient.deleteFile(dirName + "/" + fileRef)) // файла нет, если выгрузка не началась
+                    LOGGER.debug("delete \"{}/{}\" failure: {}", dirName, fileRef, ftpClient.getReplyString());
+
+                if( ! ftpClient.removeDirectory(dirName))
+                    throw failure(ftpClient, "remove directory \"" + dirName + "\"");
+                return null;
+            });
+
+            LOGGER.debug("deleted \"{}/{}\" from: \"{}\"", dirName, fileRef, config.getAddress());
         }
         catch (Exception ex)
         {
-            LOGGER.error("{}", ex.getMessage(), ex);
-            throw new SMEVRuntimeException(ex.getMessage(), ex);
+            LOGGER.error("delete \"{}/{}\" failure: {}", dirName, fileRef, ex.getMessage(), ex);
         }
-        finally
+    }
+
+    // Каждая попытка выполняется в отдельной сессии из пула. Сессия после ошибки закрывается, следующая попытка - после
+    // задержки RETRY_DELAY, удваивающейся до RETRY_MAX_DELAY. Отрицательный окончательный ответ сервера (5xx) не повторяется
+    private <T> T execute(FTPClientPool.Key key, String operation, String name, Attempt<T> attempt) throws Exception
+    {
+        int maxAttempts = Math.max(1, config.getMaxAttempts());
+        for(int i = 1; ; i++)
         {
-            disconnect();
+            FTPClient ftpClient = null;
+            boolean valid = false;
+            try
+            {
+                ftpClient = pool.borrow(key, config.getTimeout());
+                ftpClient.setSoTimeout(config.getTimeout());
+                ftpClient.setDataTimeout(Duration.ofMillis(config.getTimeout()));
+
+                FTPClient client = ftpClient;
+                int number = i;
+                T result = metrics.ftp(operation, () -> attempt.apply(client, number));
+                valid = client.isConnected();
+                return result;
+            }
+            catch (PermanentFailureException ex)
+            {
+                throw ex;
+            }
+            catch (IOException | SMEVRuntimeException ex)
+            {
+                if(i >= maxAttempts)
+                    throw ex;
+
+                long delay = Math.min(RETRY_MAX_DELAY, RETRY_DELAY << Math.min(i - 1, 16));
+                LOGGER.warn("{} \"{}\" attempt {} of {} failure: {}. Retry in {} ms", operation, name, i, maxAttempts, ex.getMessage(), delay);
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+            finally
+            {
+                if(ftpClient != null)
+                    pool.release(key, ftpClient, valid);
+            }
         }
     }
 
-    public void upload(LargeAttachment largeAttachment, InputStream inputStream) throws SMEVRuntimeException
+    // -1, если файла нет или сервер не поддерживает SIZE
+    private static long size(FTPClient ftpClient, String path) throws IOException
     {
-        LargeAttachment.TransportDetails transportDetails = largeAttachment.getTransportDetails();
-        connect(transportDetails.getUserName(), transportDetails.getPassword());
+        String size = ftpClient.getSize(path);
+        if(size == null)
+            return -1;
 
         try
         {
-            String dirName = largeAttachment.getUuid().toString();
+            return Long.parseLong(size.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
 
-            if( ! this.ftpClient.makeDirectory(dirName))
-                throw new IOException("create directory \"" + dirName + "\" Error: " + this.ftpClient.getReplyString());
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
 
-            if( ! ftpClient.changeWorkingDirectory(dirName))
-                throw new IOException("change directory to \"" + dirName + "\" failure: " + ftpClient.getReplyString());
+    private static IOException failure(FTPClient ftpClient, String message)
+    {
+        String text = message + " failure: " + ftpClient.getReplyString();
+        return FTPReply.isNegativePermanent(ftpClient.getReplyCode()) ? new PermanentFailureException(text) : new IOException(text);
+    }
 
-            if( ! ftpClient.storeFile(largeAttachment.getFileRef(), inputStream))
-                throw new IOException("upload \"" + largeAttachment.getFileRef() + "\" to: \"" + this.config.getAddress() + "\" failure: " + this.ftpClient.getReplyString());
+    private interface Attempt<T>
+    {
+        T apply(FTPClient ftpClient, int attempt) throws Exception;
+    }
 
-        } catch (Exception ex)
-        {
-            LOGGER.error("{}", ex.getMessage(), ex);
-            throw new SMEVRuntimeException(ex.getMessage(), ex);
-        }
-        finally
+    private static final class PermanentFailureException extends IOException
+    {
+        private PermanentFailureException(String message)
         {
-            disconnect();
+            super(message);
         }
     }
 }
@@ -0,0 +1,104 @@
+package org.apache.camel.component.smev3.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.micrometer.core.instrument.search.Search;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Хэш и подпись PKCS#7 повторно отправляемых вложений.
+// Ключи: файл (путь, размер, время изменения) - хэш и подпись, хэш - подпись
+public class AttachmentSignatureCache
+{
+    private static final String CACHE_NAME = "smev3.signature.cache";
+    private final Cache<Object, Entry> cache;
+
+    public static final class Entry
+    {
+        private final byte[] digest;
+        private final byte[] signature;
+
+        private Entry(byte[] digest, byte[] signature)
+        {
+            this.digest = digest;
+            this.signature = signature;
+        }
+
+        public byte[] getDigest()
+        {
+            return digest.clone();
+        }
+
+        public byte[] getSignature()
+        {
+            return signature.clone();
+        }
+    }
+
+    public AttachmentSignatureCache(long maximumSize, long ttl)
+    {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public Entry getFile(DataHandler dataHandler)
+    {
+        Object key = fileKey(dataHandler);
+        return key == null ? null : cache.getIfPresent(key);
+    }
+
+    public void putFile(DataHandler dataHandler, byte[] digest, byte[] signature)
+    {
+        Object key = fileKey(dataHandler);
+        if(key != null)
+            cache.put(key, new Entry(digest.clone(), signature.clone()));
+    }
+
+    public byte[] getSignature(byte[] digest)
+    {
+        Entry entry = cache.getIfPresent(ByteBuffer.wrap(digest));
+        return entry == null ? null : entry.getSignature();
+    }
+
+    public void putSignature(byte[] digest, byte[] signature)
+    {
+        byte[] key = digest.clone();
+        cache.put(ByteBuffer.wrap(key), new Entry(key, signature.clone()));
+    }
+
+    public CacheStats stats()
+    {
+        return cache.stats();
+    }
+
+    // Возвращает зарегистрированные метрики кэша (тег cache), чтобы удалить их из registry
+    public List<Meter> bindTo(MeterRegistry registry, String... tags)
+    {
+        GuavaCacheMetrics.monitor(registry, cache, CACHE_NAME, tags);
+        return new ArrayList<>(Search.in(registry).tags(Tags.of(tags).and("cache", CACHE_NAME)).meters());
+    }
+
+    private static Object fileKey(DataHandler dataHandler)
+    {
+        if( ! (dataHandler.getDataSource() instanceof FileDataSource))
+            return null;
+
+        File file = ((FileDataSource) dataHandler.getDataSource()).getFile();
+        return Arrays.asList(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+}
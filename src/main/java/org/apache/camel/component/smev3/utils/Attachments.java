@@ -5,20 +5,34 @@ import org.apache.camel.attachment.Attachment;
 import org.apache.camel.attachment.AttachmentMessage;
 import org.apache.camel.attachment.DefaultAttachment;
 import org.apache.camel.component.smev3.Smev3Constants;
+import org.apache.camel.component.smev3.strategy.SpillingDataSource;
+import org.jvnet.staxex.StreamingDataHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.activation.FileDataSource;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.UUID;
 
 public class Attachments
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(Attachments.class);
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
 
     public static void sendFile(String filePath, String mimeType, String attachmentId, Exchange exchange)
     {
@@ -39,6 +53,12 @@ public class Attachments
     }
 
     public static void saveAttachments(String rootPath, Exchange exchange) throws Exception
+    {
+        saveAttachments(rootPath, exchange, false);
+    }
+
+    // link = true - если вложение хранится в файле на той же файловой системе, создается жесткая ссылка вместо копии
+    public static void saveAttachments(String rootPath, Exchange exchange, boolean link) throws Exception
     {
         LOGGER.debug("saveAttachments rootPath: \"{}\"", rootPath);
         AttachmentMessage attachmentMessage = exchange.getIn(AttachmentMessage.class);
@@ -49,13 +69,131 @@ public class Attachments
                 Attachment attachment = entry.getValue();
                 String attachmentName = Smev3Constants.get(attachment, Smev3Constants.SMEV3_ATTACHMENT_NAME, entry.getKey(), String.class);
                 LOGGER.debug("saveAttachments attachment: \"{}\"", attachmentName);
-                DataHandler dataHandler = attachment.getDataHandler();
-                try(FileOutputStream outputStream = new FileOutputStream(Paths.get(rootPath, attachmentName).toFile());
-                    InputStream inputStream = dataHandler.getInputStream())
+                Path target = Paths.get(rootPath, attachmentName);
+                File source = getFile(attachment.getDataHandler());
+
+                if(source != null && isSameFile(source.toPath(), target)) // например, каталог стратегии вложений
+                    continue;
+
+                if(source != null && link && link(source.toPath(), target))
+                    continue;
+
+                if(source != null)
+                    copy(source.toPath(), target);
+                else
                 {
-                    inputStream.transferTo(outputStream);
+                    try(InputStream inputStream = attachment.getDataHandler().getInputStream())
+                    {
+                        copy(inputStream, target);
+                    }
                 }
             }
         }
     }
+
+    public static void transfer(DataHandler source, DataHandler target) throws IOException
+    {
+        if( ! (target.getDataSource() instanceof FileDataSource))
+        {
+            try (OutputStream outputStream = target.getOutputStream(); InputStream inputStream = source.getInputStream())
+            {
+                inputStream.transferTo(outputStream);
+            }
+            return;
+        }
+
+        File targetFile = ((FileDataSource) target.getDataSource()).getFile();
+        File sourceFile = getFile(source);
+        if(sourceFile != null)
+        {
+            if( ! isSameFile(sourceFile.toPath(), targetFile.toPath()))
+                copy(sourceFile.toPath(), targetFile.toPath());
+        }
+        else if(source instanceof StreamingDataHandler)
+            ((StreamingDataHandler) source).moveTo(targetFile); // MTOM вложение, уже сохраненное во временный файл, переносится без копирования
+        else
+        {
+            try (InputStream inputStream = source.getInputStream())
+            {
+                copy(inputStream, targetFile.toPath());
+            }
+        }
+    }
+
+    // Отображение файла вложения в память только для чтения, для произвольного доступа к содержимому
+    public static MappedByteBuffer map(DataHandler dataHandler) throws IOException
+    {
+        File file = getFile(dataHandler);
+        if(file == null)
+            throw new IllegalArgumentException("Attachment \"" + dataHandler.getName() + "\" is not stored in file");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public static File getFile(DataHandler dataHandler)
+    {
+        DataSource dataSource = dataHandler.getDataSource();
+        if(dataSource instanceof FileDataSource)
+            return ((FileDataSource) dataSource).getFile();
+        if(dataSource instanceof SpillingDataSource)
+            return ((SpillingDataSource) dataSource).getFile();
+        return null;
+    }
+
+    // Ссылка создается под временным именем и заменяет target атомарно: при ошибке существующий target не теряется
+    private static boolean link(Path source, Path target)
+    {
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try
+        {
+            Files.createLink(temp, source);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        catch (UnsupportedOperationException | IOException ex) // другая файловая система или ссылки не поддерживаются
+        {
+            LOGGER.debug("link \"{}\" to \"{}\" failure: {}", source, target, ex.getMessage());
+            try
+            {
+                Files.deleteIfExists(temp);
+            }
+            catch (IOException e)
+            {
+                LOGGER.debug("delete \"{}\" failure: {}", temp, e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private static boolean isSameFile(Path source, Path target) throws IOException
+    {
+        return Files.exists(target) && Files.isSameFile(source, target);
+    }
+
+    private static void copy(Path source, Path target) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long size = in.size();
+            long position = 0;
+            while(position < size)
+                position += in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+        }
+    }
+
+    private static void copy(InputStream inputStream, Path target) throws IOException
+    {
+        try (ReadableByteChannel in = Channels.newChannel(inputStream);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long position = 0;
+            long transferred;
+            while((transferred = out.transferFrom(in, position, TRANSFER_CHUNK_SIZE)) > 0)
+                position += transferred;
+        }
+    }
 }
@@ -0,0 +1,218 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Objects;
+
+public class FTPClientPool implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FTPClientPool.class);
+    private final GenericKeyedObjectPool<Key, FTPClient> pool;
+
+    public static final class Key
+    {
+        private final String address;
+        private final String login;
+        private final String password;
+
+        public Key(String address, String login, String password)
+        {
+            this.address = address;
+            this.login = login;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o)
+                return true;
+            if(!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return Objects.equals(address, key.address) && Objects.equals(login, key.login) && Objects.equals(password, key.password);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(address, login, password);
+        }
+
+        @Override
+        public String toString()
+        {
+            return login + "@" + address;
+        }
+    }
+
+    public FTPClientPool(int maxPerHost, long idleTimeout, int connectTimeout)
+    {
+        GenericKeyedObjectPoolConfig<FTPClient> poolConfig = new GenericKeyedObjectPoolConfig<>();
+        poolConfig.setMaxTotalPerKey(maxPerHost);
+        poolConfig.setMaxIdlePerKey(maxPerHost);
+        poolConfig.setMinIdlePerKey(0);
+        poolConfig.setBlockWhenExhausted(true);
+        poolConfig.setTestOnBorrow(true); // NOOP
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setMinEvictableIdleTime(Duration.ofMillis(idleTimeout));
+        poolConfig.setTimeBetweenEvictionRuns(Duration.ofMillis(Math.max(1000, idleTimeout / 2)));
+        poolConfig.setJmxEnabled(false);
+
+        this.pool = new GenericKeyedObjectPool<>(new FTPClientFactory(connectTimeout), poolConfig);
+    }
+
+    // Ожидание свободной сессии не дольше maxWait миллисекунд: пул общий для вложений, частей и всех endpoint компонента,
+    // и при его исчерпании ошибка передается в повторы вызывающего
+    public FTPClient borrow(Key key, long maxWait) throws SMEVRuntimeException
+    {
+        try
+        {
+            return pool.borrowObject(key, Math.max(0, maxWait));
+        }
+        catch (Exception ex)
+        {
+            throw new SMEVRuntimeException(ex.getMessage(), ex);
+        }
+    }
+
+    public void release(Key key, FTPClient ftpClient, boolean valid)
+    {
+        try
+        {
+            if(valid)
+                pool.returnObject(key, ftpClient);
+            else
+                pool.invalidateObject(key, ftpClient); // состояние сессии после ошибки неизвестно
+        }
+        catch (Exception ex)
+        {
+            LOGGER.error("release \"{}\" failure: {}", key, ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+
+    private static final class FTPClientFactory extends BaseKeyedPooledObjectFactory<Key, FTPClient>
+    {
+        private final int connectTimeout;
+
+        private FTPClientFactory(int connectTimeout)
+        {
+            this.connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public FTPClient create(Key key) throws Exception
+        {
+            FTPClient ftpClient = new FTPClient();
+
+            try
+            {
+                ftpClient.setControlEncoding("UTF-8");
+                ftpClient.setConnectTimeout(connectTimeout);
+                ftpClient.setDefaultTimeout(connectTimeout); // ожидание ответов при подключении и входе
+                String[] parts = key.address.split(":", 2);
+                if(parts.length == 1)
+                    ftpClient.connect(parts[0]);
+                else if(parts.length == 2)
+                    ftpClient.connect(parts[0], Integer.parseInt(parts[1]));
+                else
+                    throw new IllegalArgumentException("Invalid ftp address" + key.address);
+
+                if( ! ftpClient.isAvailable())
+                    throw new IOException(ftpClient.getReplyString());
+
+                LOGGER.debug("connected to: \"{}\"", key.address);
+                ftpClient.enterLocalPassiveMode();
+            }
+            catch (Exception ex)
+            {
+                LOGGER.error("connect to: \"{}\" failure: {}", new Object[]{ key.address, ex.getMessage(), ex });
+                throw new SMEVRuntimeException(ex.getMessage(), ex);
+            }
+
+            try
+            {
+                if(ftpClient.login(key.login, key.password))
+                {
+                    if( ! FTPReply.isPositiveCompletion(ftpClient.getReplyCode()))
+                        LOGGER.debug("negative completion, because: {}", ftpClient.getReplyString());
+
+                    ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+                }
+                else
+                    throw new IOException(ftpClient.getReplyString());
+            }
+            catch (Exception ex)
+            {
+                LOGGER.error("login failure: {}", ex.getMessage(), ex);
+                disconnect(ftpClient);
+                throw new SMEVRuntimeException(ex.getMessage(), ex);
+            }
+
+            return ftpClient;
+        }
+
+        @Override
+        public PooledObject<FTPClient> wrap(FTPClient ftpClient)
+        {
+            return new DefaultPooledObject<>(ftpClient);
+        }
+
+        @Override
+        public boolean validateObject(Key key, PooledObject<FTPClient> pooledObject)
+        {
+            FTPClient ftpClient = pooledObject.getObject();
+
+            try
+            {
+                return ftpClient.isConnected() && ftpClient.sendNoOp();
+            }
+            catch (IOException ex)
+            {
+                LOGGER.debug("validate \"{}\" failure: {}", key, ex.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public void destroyObject(Key key, PooledObject<FTPClient> pooledObject)
+        {
+            disconnect(pooledObject.getObject());
+        }
+
+        private static void disconnect(FTPClient ftpClient)
+        {
+            try
+            {
+                if(ftpClient.isConnected())
+                    ftpClient.logout();
+
+                ftpClient.disconnect();
+                LOGGER.debug("disconnect");
+            }
+            catch (Exception ex)
+            {
+                LOGGER.error("disconnect failure: {}", ex.getMessage(), ex);
+            }
+        }
+    }
+}
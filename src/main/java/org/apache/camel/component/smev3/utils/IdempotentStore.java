@@ -0,0 +1,210 @@
+package org.apache.camel.component.smev3.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Идентификаторы обработанных сообщений СМЭВ и результат подтверждения (accepted). В памяти хранится не более maximumSize
+// идентификаторов не дольше ttl. При заданном файле идентификаторы дописываются в него и загружаются при запуске,
+// файл переписывается только актуальными идентификаторами при открытии и при превышении 2 * maximumSize строк.
+// Если переписать файл не удалось, запись продолжается в прежний файл, повторная попытка - после следующих maximumSize строк
+public class IdempotentStore implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdempotentStore.class);
+    private final Cache<String, Entry> cache;
+    private final long maximumSize;
+    private final long ttl;
+    private final Path file;
+    private BufferedWriter writer;
+    private long lines;
+    private long compactAt;
+    private boolean closed;
+
+    private static final class Entry
+    {
+        private final boolean accepted;
+        private final long timestamp;
+
+        private Entry(boolean accepted, long timestamp)
+        {
+            this.accepted = accepted;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public IdempotentStore(long maximumSize, long ttl, Path file) throws IOException
+    {
+        this.maximumSize = maximumSize;
+        this.ttl = ttl;
+        this.file = file;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+
+        if(file != null)
+        {
+            load();
+            compact();
+        }
+    }
+
+    // null - сообщение не обрабатывалось, иначе результат подтверждения
+    public Boolean get(String messageId)
+    {
+        Entry entry = cache.getIfPresent(messageId);
+        if(entry == null || System.currentTimeMillis() - entry.timestamp > ttl) // после загрузки из файла TTL отсчитывается от времени обработки
+            return null;
+        return entry.accepted;
+    }
+
+    // Ошибка записи в файл не прерывает обработку, идентификатор остается в памяти
+    public synchronized void put(String messageId, boolean accepted)
+    {
+        Entry entry = new Entry(accepted, System.currentTimeMillis());
+        cache.put(messageId, entry);
+
+        if(file == null || closed)
+            return;
+
+        try
+        {
+            if(writer == null) // файл заменен, но не открыт после замены
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+            write(writer, messageId, entry);
+            writer.flush();
+            if(++lines > compactAt)
+                compact();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error("Idempotent store \"{}\" write failure: {}", file, ex.getMessage(), ex);
+        }
+    }
+
+    public long size()
+    {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        closed = true;
+        if(writer != null)
+        {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    // Строка файла: время обработки, accepted, идентификатор сообщения
+    private void load() throws IOException
+    {
+        if( ! Files.exists(file))
+            return;
+
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 3);
+                if(fields.length < 3) // оборванная последняя строка
+                    continue;
+
+                try
+                {
+                    long timestamp = Long.parseLong(fields[0]);
+                    if(now - timestamp <= ttl)
+                        cache.put(fields[2], new Entry(Boolean.parseBoolean(fields[1]), timestamp));
+                }
+                catch (NumberFormatException ex)
+                {
+                    LOGGER.warn("Idempotent store \"{}\" invalid line: {}", file, line);
+                }
+            }
+        }
+
+        LOGGER.info("Idempotent store \"{}\" loaded {} message identifiers", file, cache.size());
+    }
+
+    // Прежний writer закрывается только после замены файла: при ошибке идентификаторы продолжают дописываться в прежний файл
+    private synchronized void compact() throws IOException
+    {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long now = System.currentTimeMillis();
+        long count = 0;
+        try
+        {
+            if(file.getParent() != null)
+                Files.createDirectories(file.getParent());
+
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+            {
+                for(Map.Entry<String, Entry> entry : cache.asMap().entrySet())
+                {
+                    if(now - entry.getValue().timestamp > ttl)
+                        continue;
+                    write(out, entry.getKey(), entry.getValue());
+                    count++;
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            compactAt = lines + maximumSize;
+            try
+            {
+                Files.deleteIfExists(temp);
+            }
+            catch (IOException e)
+            {
+                ex.addSuppressed(e);
+            }
+            throw ex;
+        }
+
+        BufferedWriter previous = writer;
+        writer = null;
+        lines = count;
+        compactAt = 2 * maximumSize;
+        if(previous != null)
+        {
+            try
+            {
+                previous.close(); // указывает на замененный файл
+            }
+            catch (IOException ex)
+            {
+                LOGGER.warn("Idempotent store \"{}\" close failure: {}", file, ex.getMessage());
+            }
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(BufferedWriter out, String messageId, Entry entry) throws IOException
+    {
+        out.write(Long.toString(entry.timestamp));
+        out.write('\t');
+        out.write(Boolean.toString(entry.accepted));
+        out.write('\t');
+        out.write(messageId);
+        out.newLine();
+    }
+}
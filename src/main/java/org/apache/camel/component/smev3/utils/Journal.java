@@ -0,0 +1,361 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Журнал с дозаписью: записи и отметки об их завершении дописываются в активный сегмент.
+// Сегменты удаляются по порядку, когда все их записи завершены. При открытии незавершенные записи восстанавливаются,
+// оборванная запись в конце сегмента отбрасывается. Каталог журнала блокируется, использовать его может только один экземпляр
+public class Journal implements AutoCloseable
+{
+    public enum Sync
+    {
+        Always, // fsync после каждой записи
+        Interval, // fsync не чаще syncInterval, при сбое ОС могут быть потеряны записи последнего интервала
+        None // сброс на диск выполняет ОС
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+    private static final byte RECORD = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4; // тип, id, длина, CRC32
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final Sync sync;
+    private final long syncInterval;
+    private final long segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final List<Record> recovered = new ArrayList<>();
+    private Segment active;
+    private long nextId;
+    private long lastSync;
+    private int pending;
+    private boolean closed;
+
+    public static final class Record
+    {
+        private final long id;
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Record(long id, Segment segment, long offset, int length)
+        {
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getId()
+        {
+            return id;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private int pending;
+
+        private Segment(long sequence, Path path, FileChannel channel, long size)
+        {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    public Journal(Path directory, Sync sync, long syncInterval, long segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.sync = sync;
+        this.syncInterval = syncInterval;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try
+        {
+            lock = lockChannel.tryLock();
+            if(lock == null)
+                throw new IOException("Journal \"" + directory + "\" is locked by another process");
+        }
+        catch (OverlappingFileLockException | IOException ex)
+        {
+            lockChannel.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("Journal \"" + directory + "\" is already opened", ex);
+        }
+
+        try
+        {
+            recover();
+        }
+        catch (IOException ex)
+        {
+            close();
+            throw ex;
+        }
+    }
+
+    // Незавершенные записи, найденные при открытии, в порядке добавления. Возвращаются один раз
+    public synchronized List<Record> recovered()
+    {
+        List<Record> result = new ArrayList<>(recovered);
+        recovered.clear();
+        return result;
+    }
+
+    public synchronized int pending()
+    {
+        return pending;
+    }
+
+    public synchronized Record append(byte[] payload) throws IOException
+    {
+        checkOpen();
+        if(active == null || active.size >= segmentSize)
+            roll();
+
+        long id = nextId++;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.put(RECORD).putLong(id).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buffer.flip();
+
+        long offset = active.size;
+        write(active.channel, buffer, offset);
+        active.size += HEADER_SIZE + payload.length;
+        sync();
+
+        active.pending++;
+        pending++;
+        return new Record(id, active, offset + HEADER_SIZE, payload.length);
+    }
+
+    public byte[] read(Record record) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(record.length);
+        read(record.segment.channel, buffer, record.offset);
+        return buffer.array();
+    }
+
+    // Отметка о завершении не сбрасывается на диск принудительно, после сбоя запись может быть восстановлена повторно
+    public synchronized void complete(Record record) throws IOException
+    {
+        checkOpen();
+        if(active == null || active.size >= segmentSize)
+            roll();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.put(DONE).putLong(record.id).putInt(0).putInt(0);
+        buffer.flip();
+
+        write(active.channel, buffer, active.size);
+        active.size += HEADER_SIZE;
+
+        record.segment.pending--;
+        pending--;
+        purge();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(closed)
+            return;
+        closed = true;
+
+        try
+        {
+            for(Segment segment : segments.values())
+            {
+                if(segment == active && sync != Sync.None)
+                    segment.channel.force(false);
+                segment.channel.close();
+            }
+            segments.clear();
+            active = null;
+        }
+        finally
+        {
+            if(lock != null && lock.isValid())
+                lock.release();
+            lockChannel.close();
+        }
+    }
+
+    // После закрытия каталог разблокирован, новый сегмент мог бы создать другой экземпляр
+    private void checkOpen() throws IOException
+    {
+        if(closed)
+            throw new IOException("Journal \"" + directory + "\" is closed");
+    }
+
+    private void recover() throws IOException
+    {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            stream.forEach(paths::add);
+        }
+
+        for(Path path : paths)
+        {
+            String name = path.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(sequence, new Segment(sequence, path, channel, channel.size()));
+        }
+
+        // Отметка о завершении всегда находится в том же или более позднем сегменте, чем запись
+        Map<Long, Record> records = new LinkedHashMap<>();
+        for(Segment segment : segments.values())
+        {
+            long position = scan(segment, records);
+            if(position < segment.size)
+            {
+                LOGGER.warn("Journal segment \"{}\" truncated from {} to {} bytes", segment.path, segment.size, position);
+                segment.channel.truncate(position);
+                segment.size = position;
+            }
+        }
+
+        for(Record record : records.values())
+            record.segment.pending++;
+
+        recovered.addAll(records.values());
+        pending = recovered.size();
+        purge();
+
+        if( ! recovered.isEmpty())
+            LOGGER.info("Journal \"{}\" recovered {} records", directory, recovered.size());
+    }
+
+    private long scan(Segment segment, Map<Long, Record> records) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+
+        while(position + HEADER_SIZE <= segment.size)
+        {
+            header.clear();
+            read(segment.channel, header, position);
+            header.flip();
+
+            byte type = header.get();
+            long id = header.getLong();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if(type == RECORD)
+            {
+                if(length < 0 || position + HEADER_SIZE + length > segment.size)
+                    break;
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                read(segment.channel, payload, position + HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if((int) crc.getValue() != checksum)
+                    break;
+
+                records.put(id, new Record(id, segment, position + HEADER_SIZE, length));
+            }
+            else if(type == DONE)
+            {
+                records.remove(id);
+                length = 0;
+            }
+            else
+                break;
+
+            nextId = Math.max(nextId, id + 1);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void roll() throws IOException
+    {
+        if(active != null && sync != Sync.None)
+            active.channel.force(false);
+
+        long sequence = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = new Segment(sequence, path, channel, 0);
+        segments.put(sequence, active);
+        purge();
+    }
+
+    // Удаляются только начальные сегменты, чтобы вместе с сегментом не пропали отметки о завершении записей предыдущих
+    private void purge() throws IOException
+    {
+        while( ! segments.isEmpty())
+        {
+            Segment first = segments.firstEntry().getValue();
+            if(first == active || first.pending > 0)
+                break;
+
+            segments.remove(first.sequence);
+            first.channel.close();
+            Files.deleteIfExists(first.path);
+        }
+    }
+
+    private void sync() throws IOException
+    {
+        if(sync == Sync.Always)
+            active.channel.force(false);
+        else if(sync == Sync.Interval && System.currentTimeMillis() - lastSync >= syncInterval)
+        {
+            active.channel.force(false);
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if(n < 0)
+                throw new EOFException();
+            position += n;
+        }
+    }
+}
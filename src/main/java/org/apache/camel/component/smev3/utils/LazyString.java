@@ -0,0 +1,44 @@
+package org.apache.camel.component.smev3.utils;
+
+import java.util.function.Supplier;
+
+// Значение заголовка, вычисляемое при первом обращении (toString, ${header}, getHeader(name, String.class))
+public final class LazyString implements CharSequence
+{
+    private Supplier<String> supplier;
+    private String value;
+
+    public LazyString(Supplier<String> supplier)
+    {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if(supplier != null)
+        {
+            value = supplier.get();
+            supplier = null; // отпускаем исходные данные
+        }
+        return value;
+    }
+
+    @Override
+    public int length()
+    {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return toString().subSequence(start, end);
+    }
+}
@@ -0,0 +1,122 @@
+package org.apache.camel.component.smev3.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Поток, который хранит последние window прочитанных байт и может вернуться к любой позиции в их пределах.
+// Исходный поток читается один раз, поэтому хэш (DigestInputStream) при повторном чтении не искажается
+class ReplayInputStream extends FilterInputStream
+{
+    private final byte[] buffer;
+    private final byte[] single = new byte[1];
+    private long position; // позиция следующего байта для читателя
+    private long read; // прочитано из исходного потока
+
+    ReplayInputStream(InputStream in, int window)
+    {
+        super(in);
+        this.buffer = new byte[window];
+    }
+
+    long getPosition()
+    {
+        return position;
+    }
+
+    // false, если позиция уже вышла за пределы окна или еще не прочитана
+    boolean rewind(long position)
+    {
+        if(position > read || position < read - Math.min(read, buffer.length))
+            return false;
+
+        this.position = position;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int n = read(single, 0, 1);
+        return n <= 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if(len == 0)
+            return 0;
+
+        if(position < read) // повторная передача из окна
+        {
+            int n = (int) Math.min(len, read - position);
+            copy(position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        int n = in.read(b, off, len);
+        if(n <= 0)
+            return n;
+
+        int keep = Math.min(n, buffer.length);
+        store(read + n - keep, b, off + n - keep, keep);
+        read += n;
+        position = read;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        byte[] b = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while(skipped < n)
+        {
+            int count = read(b, 0, (int) Math.min(b.length, n - skipped));
+            if(count <= 0)
+                break;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(Integer.MAX_VALUE, read - position + in.available());
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void store(long from, byte[] b, int off, int len)
+    {
+        int index = (int) (from % buffer.length);
+        int first = Math.min(len, buffer.length - index);
+        System.arraycopy(b, off, buffer, index, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+    }
+
+    private void copy(long from, byte[] b, int off, int len)
+    {
+        int index = (int) (from % buffer.length);
+        int first = Math.min(len, buffer.length - index);
+        System.arraycopy(buffer, index, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, len - first);
+    }
+}
@@ -0,0 +1,141 @@
+package org.apache.camel.component.smev3.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.client.api.services.signature.Signer;
+import ru.voskhod.smev.client.api.services.signature.configuration.SignerConfiguration;
+import ru.voskhod.smev.client.api.signature.impl.SignerFactory;
+import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Экземпляры Signer для параллельной подписи: операция берет свободный экземпляр на время вызова, при отсутствии свободных ожидает.
+// Экземпляр, на котором операция завершилась ошибкой, в пул не возвращается
+public class SignerPool implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SignerPool.class);
+    private final GenericObjectPool<Signer> pool;
+    private volatile Timer waitTimer;
+
+    public interface Operation<T, E extends Exception>
+    {
+        T apply(Signer signer) throws E;
+    }
+
+    public SignerPool(SignerConfiguration signerConfiguration, int size)
+    {
+        GenericObjectPoolConfig<Signer> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(size);
+        poolConfig.setMaxIdle(size);
+        poolConfig.setMinIdle(0);
+        poolConfig.setBlockWhenExhausted(true);
+        poolConfig.setJmxEnabled(false);
+
+        this.pool = new GenericObjectPool<>(new SignerFactoryAdapter(signerConfiguration), poolConfig);
+    }
+
+    public <T, E extends Exception> T execute(Operation<T, E> operation) throws E, SMEVRuntimeException
+    {
+        Signer signer = borrow();
+        boolean success = false;
+        try
+        {
+            T result = operation.apply(signer);
+            success = true;
+            return result;
+        }
+        finally
+        {
+            if(success)
+                pool.returnObject(signer);
+            else
+                invalidate(signer); // состояние signer после ошибки неизвестно, вместо него будет создан новый
+        }
+    }
+
+    // Возвращает зарегистрированные метрики, чтобы удалить их из registry при закрытии пула
+    public List<Meter> bindTo(MeterRegistry registry, String... tags)
+    {
+        waitTimer = Timer.builder("smev3.signer.wait").tags(tags).register(registry);
+        return Arrays.asList(
+                waitTimer,
+                Gauge.builder("smev3.signer.active", pool, GenericObjectPool::getNumActive).tags(tags).register(registry),
+                Gauge.builder("smev3.signer.waiting", pool, GenericObjectPool::getNumWaiters).tags(tags).register(registry));
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+
+    private void invalidate(Signer signer)
+    {
+        try
+        {
+            pool.invalidateObject(signer);
+        }
+        catch (Exception ex)
+        {
+            LOGGER.warn("signer invalidate failure: {}", ex.getMessage(), ex);
+        }
+    }
+
+    private Signer borrow() throws SMEVRuntimeException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return pool.borrowObject();
+        }
+        catch (Exception ex)
+        {
+            throw new SMEVRuntimeException(ex.getMessage(), ex);
+        }
+        finally
+        {
+            Timer timer = waitTimer;
+            if(timer != null)
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static final class SignerFactoryAdapter extends BasePooledObjectFactory<Signer>
+    {
+        private final SignerConfiguration signerConfiguration;
+
+        private SignerFactoryAdapter(SignerConfiguration signerConfiguration)
+        {
+            this.signerConfiguration = signerConfiguration;
+        }
+
+        @Override
+        public Signer create() throws Exception
+        {
+            Signer signer = SignerFactory.getSigner(
+                    signerConfiguration,
+                    signerConfiguration.getCertificateAlias(),
+                    signerConfiguration.getPrivateKeyAlias(),
+                    signerConfiguration.getPrivateKeyPassword());
+            LOGGER.debug("signer created: \"{}\"", signerConfiguration.getCertificateAlias());
+            return signer;
+        }
+
+        @Override
+        public PooledObject<Signer> wrap(Signer signer)
+        {
+            return new DefaultPooledObject<>(signer);
+        }
+    }
+}
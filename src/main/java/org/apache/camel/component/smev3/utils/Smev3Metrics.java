@@ -0,0 +1,157 @@
+package org.apache.camel.component.smev3.utils;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+public class Smev3Metrics
+{
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+    private final MeterRegistry registry;
+    private final Tags tags;
+
+    public interface Call<T, E extends Exception>
+    {
+        T call() throws E;
+    }
+
+    public Smev3Metrics(MeterRegistry registry, String endpoint, String version)
+    {
+        this.registry = registry;
+        this.tags = Tags.of("endpoint", endpoint, "version", version);
+    }
+
+    // Вызовы WSTemplate: get, send, ack
+    public <T, E extends Exception> T ws(String operation, Call<T, E> call) throws E
+    {
+        return time("smev3.ws", operation, call);
+    }
+
+    // Выгрузка и загрузка больших вложений: upload, download
+    public <T, E extends Exception> T ftp(String operation, Call<T, E> call) throws E
+    {
+        return time("smev3.ftp", operation, call);
+    }
+
+    public void ftpBytes(String operation, long bytes)
+    {
+        DistributionSummary.builder("smev3.ftp.bytes")
+                .baseUnit("bytes")
+                .tags(tags.and("operation", operation))
+                .register(registry)
+                .record(bytes);
+    }
+
+    // Подпись считается по процессорному времени текущего потока, если JVM его поддерживает
+    public <T, E extends Exception> T sign(String operation, Call<T, E> call) throws E
+    {
+        long start = cpuTime();
+        try
+        {
+            return call.call();
+        }
+        finally
+        {
+            registry.timer("smev3.sign", tags.and("operation", operation)).record(cpuTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void attachment(String direction, String type, Long length)
+    {
+        DistributionSummary summary = DistributionSummary.builder("smev3.attachments")
+                .baseUnit("bytes")
+                .tags(tags.and("direction", direction, "type", type))
+                .register(registry);
+
+        if(length != null)
+            summary.record(length);
+        else
+            registry.counter("smev3.attachments.unknown.length", tags.and("direction", direction, "type", type)).increment();
+    }
+
+    public void poll(boolean empty)
+    {
+        registry.counter("smev3.polls", tags.and("result", empty ? "empty" : "message")).increment();
+    }
+
+    public Gauge ackQueue(Collection<?> queue)
+    {
+        return Gauge.builder("smev3.ack.queue", queue, Collection::size)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    public void ackDropped()
+    {
+        registry.counter("smev3.ack.dropped", tags).increment();
+    }
+
+    // Журналы outbox и staging: smev3.outbox.*, smev3.staging.*. Gauge удерживает журнал и удаляется через remove при остановке
+    public <T> Gauge journalPending(String journal, T obj, ToDoubleFunction<T> pending)
+    {
+        return Gauge.builder("smev3." + journal + ".pending", obj, pending)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    public void journalFailed(String journal)
+    {
+        registry.counter("smev3." + journal + ".failed", tags).increment();
+    }
+
+    public <T> Gauge idempotentSize(T obj, ToDoubleFunction<T> size)
+    {
+        return Gauge.builder("smev3.idempotent.size", obj, size)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    public void duplicate()
+    {
+        registry.counter("smev3.duplicates", tags).increment();
+    }
+
+    public void rollback()
+    {
+        registry.counter("smev3.rollbacks", tags).increment();
+    }
+
+    public void remove(Meter meter)
+    {
+        if(meter != null)
+            registry.remove(meter);
+    }
+
+    private <T, E extends Exception> T time(String name, String operation, Call<T, E> call) throws E
+    {
+        long start = System.nanoTime();
+        String outcome = "failure";
+        try
+        {
+            T result = call.call();
+            outcome = "success";
+            return result;
+        }
+        finally
+        {
+            registry.timer(name, tags.and("operation", operation, "outcome", outcome)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static long cpuTime()
+    {
+        return CPU_TIME ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
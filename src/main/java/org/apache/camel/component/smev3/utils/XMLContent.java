@@ -0,0 +1,171 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.crypto.util.SmevTransformUtil;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Разбор и сериализация бизнес содержимого без промежуточных String
+public final class XMLContent
+{
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = createDocumentBuilderFactory();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newDefaultInstance(); // встроенный в JDK XSLTC, xalan из classpath не поддерживает StAXSource
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(XMLContent::newDocumentBuilder);
+    private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial(XMLContent::newTransformer);
+
+    private XMLContent()
+    {
+    }
+
+    // Преобразование СМЭВ (SmevTransformUtil) и построение DOM из байтов
+    public static Element parse(byte[] xml) throws Exception
+    {
+        return build(SmevTransformUtil.transform(xml));
+    }
+
+    // Построение DOM без преобразования СМЭВ, для содержимого, которое уже было преобразовано
+    public static Element build(byte[] xml) throws Exception
+    {
+        DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+
+        try
+        {
+            Document document = documentBuilder.parse(new ByteArrayInputStream(xml));
+            return document.getDocumentElement();
+        }
+        finally
+        {
+            documentBuilder.reset();
+        }
+    }
+
+    public static Element parse(InputStream inputStream) throws Exception
+    {
+        return parse(inputStream.readAllBytes());
+    }
+
+    public static Element parse(Source source) throws Exception
+    {
+        if(source instanceof StreamSource && ((StreamSource) source).getInputStream() != null)
+            return parse(((StreamSource) source).getInputStream());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Transformer transformer = TRANSFORMER.get();
+
+        try
+        {
+            transformer.transform(source, new StreamResult(outputStream));
+        }
+        finally
+        {
+            transformer.reset();
+        }
+
+        return parse(outputStream.toByteArray());
+    }
+
+    // Сериализация сразу в UTF-8, без промежуточной String
+    public static byte[] toBytes(Element element, boolean omitXMLDeclaration) throws Exception
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        write(element, outputStream, omitXMLDeclaration);
+        return outputStream.toByteArray();
+    }
+
+    public static void write(Element element, OutputStream outputStream, boolean omitXMLDeclaration) throws Exception
+    {
+        Transformer transformer = TRANSFORMER.get();
+
+        try
+        {
+            transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXMLDeclaration ? "yes" : "no");
+            transformer.transform(new DOMSource(element), new StreamResult(outputStream));
+        }
+        finally
+        {
+            transformer.reset();
+        }
+    }
+
+    // Значение заголовка, сериализуемое при первом обращении
+    public static CharSequence lazyString(Element element, boolean omitXMLDeclaration)
+    {
+        if(element == null)
+            return null;
+
+        return new LazyString(() -> {
+            try
+            {
+                return new String(toBytes(element, omitXMLDeclaration), StandardCharsets.UTF_8);
+            }
+            catch (Exception ex)
+            {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        });
+    }
+
+    private static DocumentBuilderFactory createDocumentBuilderFactory()
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        try
+        {
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true); // XXE
+        }
+        catch (ParserConfigurationException ex)
+        {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+
+        return factory;
+    }
+
+    private static DocumentBuilder newDocumentBuilder()
+    {
+        try
+        {
+            synchronized (DOCUMENT_BUILDER_FACTORY) // фабрики JAXP не потокобезопасны
+            {
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+        }
+        catch (ParserConfigurationException ex)
+        {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    private static Transformer newTransformer()
+    {
+        try
+        {
+            synchronized (TRANSFORMER_FACTORY)
+            {
+                return TRANSFORMER_FACTORY.newTransformer();
+            }
+        }
+        catch (TransformerConfigurationException ex)
+        {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.attachment.AttachmentMessage;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.smev3.strategy.AttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.ByteArrayDataSource;
+import org.apache.camel.component.smev3.strategy.HybridAttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.InMemoryAttachmentsStrategy;
+import org.apache.camel.component.smev3.strategy.SpillingDataSource;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Маршрут читает вложение в потоке seda уже после того, как poll отправил exchange и вернул управление
+public class Smev3AttachmentsReleaseTest
+{
+    private static final int SIZE = 512 * 1024;
+
+    private CamelContext camelContext;
+    private ProducerTemplate template;
+    private final CountDownLatch polled = new CountDownLatch(1);
+    private final CompletableFuture<byte[]> read = new CompletableFuture<>();
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from("direct:smev3").to("seda:read");
+                from("seda:read").process(exchange -> {
+                    polled.await(10, TimeUnit.SECONDS);
+                    DataHandler dataHandler = exchange.getIn(AttachmentMessage.class).getAttachment("attachment");
+                    try (InputStream in = dataHandler.getInputStream())
+                    {
+                        read.complete(in.readAllBytes());
+                    }
+                    catch (Exception ex)
+                    {
+                        read.completeExceptionally(ex);
+                    }
+                });
+            }
+        });
+        camelContext.start();
+        template = camelContext.createProducerTemplate();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void inMemoryAttachmentIsReleasedOnExchangeCompletion() throws Exception
+    {
+        DataHandler dataHandler = sendAndRead(new InMemoryAttachmentsStrategy());
+
+        ByteArrayDataSource source = (ByteArrayDataSource) dataHandler.getDataSource();
+        awaitReleased(() -> source.getLength() == 0);
+        assertThrows(IllegalStateException.class, source::getInputStream);
+    }
+
+    @Test
+    public void spilledAttachmentIsReleasedOnExchangeCompletion() throws Exception
+    {
+        Path spillDirectory = Files.createTempDirectory("smev3-spill");
+        DataHandler dataHandler = sendAndRead(new HybridAttachmentsStrategy(spillDirectory.toString(), 64 * 1024, 1024 * 1024));
+
+        SpillingDataSource source = (SpillingDataSource) dataHandler.getDataSource();
+        awaitReleased(() -> ! source.isSpilled());
+        assertThrows(IOException.class, source::getInputStream);
+        try (Stream<Path> files = Files.list(spillDirectory))
+        {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private DataHandler sendAndRead(AttachmentsStrategy attachmentsStrategy) throws Exception
+    {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+
+        Exchange exchange = new DefaultExchange(camelContext);
+        DataHandler dataHandler = attachmentsStrategy.get(exchange, "message", "attachment", "attachment", null, null, 0, 1);
+        try (OutputStream out = dataHandler.getOutputStream())
+        {
+            out.write(data);
+        }
+        exchange.getIn(AttachmentMessage.class).addAttachment("attachment", dataHandler);
+
+        // Как в Smev3Consumer.poll: освобождение регистрируется до передачи exchange маршруту
+        Smev3AttachmentsRelease release = new Smev3AttachmentsRelease(attachmentsStrategy, Collections.singletonList(dataHandler));
+        exchange.adapt(ExtendedExchange.class).addOnCompletion(release);
+        template.send("direct:smev3", exchange);
+
+        // poll вернул управление, следующие сообщения занимают память
+        ByteArrayDataSource next = new ByteArrayDataSource("next", null);
+        next.getOutputStream().write(new byte[SIZE]);
+
+        polled.countDown();
+        assertArrayEquals(data, read.get(10, TimeUnit.SECONDS));
+        next.release();
+        return dataHandler;
+    }
+
+    private static void awaitReleased(BooleanSupplier released) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000; // onCompletion выполняется после процессора seda
+        while( ! released.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(released.getAsBoolean());
+    }
+
+    @Test
+    public void releaseRunsOnce() throws Exception
+    {
+        int[] done = new int[1];
+        AttachmentsStrategy attachmentsStrategy = new InMemoryAttachmentsStrategy()
+        {
+            @Override
+            public void done(DataHandler dataHandler) throws Exception
+            {
+                done[0]++;
+                super.done(dataHandler);
+            }
+        };
+        Exchange exchange = new DefaultExchange(camelContext);
+        DataHandler dataHandler = attachmentsStrategy.get(exchange, "message", "attachment", "attachment", null, null, 0, 1);
+
+        Smev3AttachmentsRelease release = new Smev3AttachmentsRelease(attachmentsStrategy, Collections.singletonList(dataHandler));
+        release.onComplete(exchange);
+        release.onFailure(exchange);
+        release.release();
+        assertEquals(1, done[0]);
+    }
+}
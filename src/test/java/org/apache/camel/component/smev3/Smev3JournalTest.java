@@ -0,0 +1,180 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smev3.utils.Journal;
+import org.apache.camel.component.smev3.utils.LazyString;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Smev3JournalTest
+{
+    private static final String NAMESPACE = "urn://x-artefacts-smev-gov-ru/test/1.0";
+
+    @TempDir
+    Path directory;
+
+    private CamelContext camelContext;
+
+    @BeforeEach
+    public void setUp()
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void restoresHeaderTypes() throws Exception
+    {
+        XMLGregorianCalendar timestamp = DatatypeFactory.newInstance().newXMLGregorianCalendar("2023-07-21T10:15:30.000+03:00");
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody("body");
+        exchange.getMessage().setHeader("CamelSmev3String", "value");
+        exchange.getMessage().setHeader("CamelSmev3Boolean", true);
+        exchange.getMessage().setHeader("CamelSmev3Integer", 42);
+        exchange.getMessage().setHeader("CamelSmev3Long", 42L);
+        exchange.getMessage().setHeader("CamelSmev3Bytes", new byte[] { 1, 2, 3 });
+        exchange.getMessage().setHeader("CamelSmev3Calendar", timestamp);
+        exchange.getMessage().setHeader("CamelSmev3Enum", TimeUnit.SECONDS);
+        exchange.getMessage().setHeader("CamelSmev3Element", element());
+        exchange.getMessage().setHeader("CamelSmev3Exception", new IllegalStateException("failure"));
+        exchange.getMessage().setHeader("CamelSmev3Lazy", new LazyString(() -> "lazy"));
+        exchange.getMessage().setHeader("Other", "not journaled");
+
+        Exchange restored = writeAndRead(exchange);
+
+        assertEquals("body", restored.getMessage().getBody());
+        assertEquals("value", restored.getMessage().getHeader("CamelSmev3String"));
+        assertEquals(true, restored.getMessage().getHeader("CamelSmev3Boolean"));
+        assertEquals(42, restored.getMessage().getHeader("CamelSmev3Integer"));
+        assertEquals(42L, restored.getMessage().getHeader("CamelSmev3Long"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) restored.getMessage().getHeader("CamelSmev3Bytes"));
+        assertEquals(timestamp, restored.getMessage().getHeader("CamelSmev3Calendar"));
+        assertSame(TimeUnit.SECONDS, restored.getMessage().getHeader("CamelSmev3Enum"));
+        assertElement((Element) restored.getMessage().getHeader("CamelSmev3Element"));
+        Object exception = restored.getMessage().getHeader("CamelSmev3Exception");
+        assertTrue(exception instanceof IllegalStateException);
+        assertEquals("failure", ((IllegalStateException) exception).getMessage());
+        assertEquals("lazy", restored.getMessage().getHeader("CamelSmev3Lazy"));
+        assertNull(restored.getMessage().getHeader("Other"));
+    }
+
+    @Test
+    public void restoresElementBodyWithoutTransform() throws Exception
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody(element());
+
+        Object body = writeAndRead(exchange).getMessage().getBody();
+        assertTrue(body instanceof Element);
+        assertElement((Element) body);
+    }
+
+    @Test
+    public void restoresBytesAndStreamBodies() throws Exception
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody(new byte[] { 1, 2, 3 });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) writeAndRead(exchange).getMessage().getBody());
+
+        exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody(new ByteArrayInputStream("stream".getBytes(StandardCharsets.UTF_8)));
+        Exchange restored = writeAndRead(exchange);
+        assertEquals("stream", restored.getMessage().getBody(String.class));
+    }
+
+    @Test
+    public void rejectsUnsupportedHeaderType() throws Exception
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody("body");
+        exchange.getMessage().setHeader("CamelSmev3Object", new Object());
+
+        try (Smev3Journal journal = new Smev3Journal(directory, Journal.Sync.None, 0))
+        {
+            assertThrows(IllegalArgumentException.class, () -> journal.write(exchange, false));
+            assertEquals(0, journal.pending());
+        }
+    }
+
+    @Test
+    public void recoversAfterReopen() throws Exception
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody("body");
+        exchange.getMessage().setHeader("CamelSmev3Enum", TimeUnit.SECONDS);
+
+        try (Smev3Journal journal = new Smev3Journal(directory, Journal.Sync.Always, 0))
+        {
+            journal.recover();
+            journal.write(exchange, false);
+        }
+
+        try (Smev3Journal journal = new Smev3Journal(directory, Journal.Sync.Always, 0))
+        {
+            List<Smev3Journal.Entry> entries = journal.recover();
+            assertEquals(1, entries.size());
+
+            Exchange restored = new DefaultExchange(camelContext);
+            journal.read(entries.get(0), restored);
+            assertEquals("body", restored.getMessage().getBody());
+            assertSame(TimeUnit.SECONDS, restored.getMessage().getHeader("CamelSmev3Enum"));
+            journal.complete(entries.get(0));
+        }
+
+        try (Smev3Journal journal = new Smev3Journal(directory, Journal.Sync.Always, 0))
+        {
+            assertTrue(journal.recover().isEmpty());
+        }
+    }
+
+    private Exchange writeAndRead(Exchange exchange) throws Exception
+    {
+        try (Smev3Journal journal = new Smev3Journal(directory, Journal.Sync.None, 0))
+        {
+            journal.recover();
+            Smev3Journal.Entry entry = journal.write(exchange, false);
+            Exchange restored = new DefaultExchange(camelContext);
+            journal.read(entry, restored);
+            journal.complete(entry);
+            return restored;
+        }
+    }
+
+    private static Element element() throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        String xml = "<t:Request xmlns:t=\"" + NAMESPACE + "\"><t:Name>Иванов</t:Name></t:Request>";
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).getDocumentElement();
+    }
+
+    private static void assertElement(Element element)
+    {
+        assertEquals(NAMESPACE, element.getNamespaceURI());
+        assertEquals("Request", element.getLocalName());
+        assertEquals("Иванов", element.getTextContent());
+    }
+}
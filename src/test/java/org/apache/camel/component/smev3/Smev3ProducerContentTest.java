@@ -0,0 +1,163 @@
+package org.apache.camel.component.smev3;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.MessageHelper;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Все поддерживаемые типы тела сообщения producer приводятся к одному и тому же Element
+public class Smev3ProducerContentTest
+{
+    private static final String NAMESPACE = "urn://x-artefacts-smev-gov-ru/test/1.0";
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<t:Request xmlns:t=\"" + NAMESPACE + "\"><t:Name>Иванов</t:Name></t:Request>";
+
+    @Test
+    public void element() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(parseDocument().getDocumentElement()));
+    }
+
+    @Test
+    public void document() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(parseDocument()));
+    }
+
+    @Test
+    public void string() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(XML));
+    }
+
+    @Test
+    public void bytes() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(xmlBytes()));
+    }
+
+    @Test
+    public void inputStream() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new ByteArrayInputStream(xmlBytes())));
+    }
+
+    @Test
+    public void domSourceOfDocument() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new DOMSource(parseDocument())));
+    }
+
+    @Test
+    public void domSourceOfElement() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new DOMSource(parseDocument().getDocumentElement())));
+    }
+
+    @Test
+    public void streamSourceOfInputStream() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new StreamSource(new ByteArrayInputStream(xmlBytes()))));
+    }
+
+    @Test
+    public void streamSourceOfReader() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new StreamSource(new StringReader(XML))));
+    }
+
+    @Test
+    public void saxSource() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new SAXSource(new InputSource(new ByteArrayInputStream(xmlBytes())))));
+    }
+
+    @Test
+    public void staxSourceOfStreamReader() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new StAXSource(XMLInputFactory.newFactory().createXMLStreamReader(new ByteArrayInputStream(xmlBytes())))));
+    }
+
+    @Test
+    public void staxSourceOfEventReader() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(new StAXSource(XMLInputFactory.newFactory().createXMLEventReader(new ByteArrayInputStream(xmlBytes())))));
+    }
+
+    @Test
+    public void xmlStreamReader() throws Exception
+    {
+        assertContent(Smev3Producer.getContent(XMLInputFactory.newFactory().createXMLStreamReader(new ByteArrayInputStream(xmlBytes()))));
+    }
+
+    @Test
+    public void streamBodiesAfterTraceLog() throws Exception
+    {
+        CamelContext camelContext = new DefaultCamelContext();
+        camelContext.start();
+        try
+        {
+            Object[] bodies = {
+                    new ByteArrayInputStream(xmlBytes()),
+                    new StreamSource(new ByteArrayInputStream(xmlBytes())),
+                    new StreamSource(new StringReader(XML))
+            };
+            for(Object body : bodies)
+            {
+                Exchange exchange = new DefaultExchange(camelContext);
+                exchange.getMessage().setBody(body);
+                assertTrue(MessageHelper.extractBodyAsString(exchange.getMessage()).contains("Иванов")); // как в trace логе producer
+                assertContent(Smev3Producer.getContent(exchange.getMessage().getBody()));
+            }
+        }
+        finally
+        {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void unexpectedType()
+    {
+        assertThrows(Exception.class, () -> Smev3Producer.getContent(42));
+        assertThrows(Exception.class, () -> Smev3Producer.getContent(null));
+    }
+
+    private static void assertContent(Element content)
+    {
+        assertEquals(NAMESPACE, content.getNamespaceURI());
+        assertEquals("Request", content.getLocalName());
+        Element name = (Element) content.getElementsByTagNameNS(NAMESPACE, "Name").item(0);
+        assertNotNull(name);
+        assertEquals("Иванов", name.getTextContent());
+    }
+
+    private static byte[] xmlBytes()
+    {
+        return XML.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Document parseDocument() throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xmlBytes()));
+    }
+}
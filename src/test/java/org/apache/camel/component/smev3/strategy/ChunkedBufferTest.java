@@ -0,0 +1,113 @@
+package org.apache.camel.component.smev3.strategy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedBufferTest
+{
+    private static final int SIZE = 200 * 1024; // несколько блоков по 64 КБ
+
+    @Test
+    public void readsWrittenData() throws IOException
+    {
+        byte[] data = random(SIZE, 1);
+        ChunkedBuffer buffer = new ChunkedBuffer(false);
+        buffer.write(data, 0, 1000);
+        buffer.write(data[1000]);
+        buffer.write(data, 1001, data.length - 1001);
+
+        assertEquals(SIZE, buffer.length());
+        try (InputStream in = buffer.getInputStream())
+        {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = buffer.getInputStream()) // можно читать повторно
+        {
+            assertEquals(100, in.skip(100));
+            assertEquals(data[100] & 0xFF, in.read());
+        }
+        buffer.release();
+    }
+
+    @Test
+    public void reusedChunksDoNotLeakPreviousData() throws IOException
+    {
+        for(boolean direct : new boolean[] { false, true })
+        {
+            ChunkedBuffer first = new ChunkedBuffer(direct);
+            first.write(random(SIZE, 2), 0, SIZE);
+            first.release();
+
+            byte[] data = random(1000, 3);
+            ChunkedBuffer second = new ChunkedBuffer(direct); // получает блоки первого буфера из пула
+            second.write(data, 0, data.length);
+            assertEquals(data.length, second.length());
+            try (InputStream in = second.getInputStream())
+            {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            second.release();
+        }
+    }
+
+    @Test
+    public void openStreamSurvivesRelease() throws IOException
+    {
+        byte[] data = random(SIZE, 4);
+        ChunkedBuffer buffer = new ChunkedBuffer(false);
+        buffer.write(data, 0, data.length);
+
+        InputStream in = buffer.getInputStream();
+        buffer.release();
+        assertEquals(0, buffer.length());
+        assertThrows(IllegalStateException.class, buffer::getInputStream);
+        assertThrows(IllegalStateException.class, () -> buffer.write(1));
+
+        // Блоки не вернулись в пул, пока поток открыт, и не перезаписываются другим буфером
+        ChunkedBuffer other = new ChunkedBuffer(false);
+        byte[] zeros = new byte[SIZE];
+        other.write(zeros, 0, zeros.length);
+
+        assertArrayEquals(data, in.readAllBytes());
+        in.close();
+        in.close();
+        assertEquals(-1, in.read());
+        other.release();
+    }
+
+    @Test
+    public void releaseIsIdempotent() throws IOException
+    {
+        ChunkedBuffer buffer = new ChunkedBuffer(false);
+        buffer.write(random(SIZE, 5), 0, SIZE);
+        buffer.release();
+        buffer.release();
+
+        byte[] data = random(SIZE, 6);
+        ChunkedBuffer first = new ChunkedBuffer(false);
+        ChunkedBuffer second = new ChunkedBuffer(false); // блок, возвращенный дважды, достался бы обоим
+        for(int i = 0; i < SIZE; i += 1024)
+        {
+            first.write(data, i, 1024);
+            second.write(new byte[1024], 0, 1024);
+        }
+        try (InputStream in = first.getInputStream())
+        {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        first.release();
+        second.release();
+    }
+
+    private static byte[] random(int size, long seed)
+    {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,71 @@
+package org.apache.camel.component.smev3.strategy;
+
+import org.junit.jupiter.api.Test;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LazyDataSourceTest
+{
+    @Test
+    public void loadsOnFirstRead() throws IOException
+    {
+        ByteArrayDataSource target = new ByteArrayDataSource("a", null);
+        AtomicInteger loads = new AtomicInteger();
+        LazyDataSource source = new LazyDataSource("a", null, new DataHandler(target), dataHandler -> {
+            loads.incrementAndGet();
+            try (OutputStream out = dataHandler.getOutputStream())
+            {
+                out.write("content".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        assertFalse(source.isMaterialized());
+        assertEquals(0, loads.get());
+        assertEquals("content", read(source));
+        assertEquals("content", read(source));
+        assertTrue(source.isMaterialized());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void repeatsLoadFailure()
+    {
+        AtomicInteger loads = new AtomicInteger();
+        LazyDataSource source = new LazyDataSource("a", null, new DataHandler(new ByteArrayDataSource("a", null)), dataHandler -> {
+            loads.incrementAndGet();
+            throw new IllegalStateException("source is moved");
+        });
+
+        IOException first = assertThrows(IOException.class, source::getInputStream);
+        IOException second = assertThrows(IOException.class, source::getInputStream);
+        assertEquals("source is moved", first.getMessage());
+        assertEquals("source is moved", second.getMessage());
+        assertEquals(1, loads.get()); // загрузка не повторяется
+        assertFalse(source.isMaterialized());
+    }
+
+    @Test
+    public void releaseReturnsNotLoadedDataHandler()
+    {
+        DataHandler dataHandler = new DataHandler(new ByteArrayDataSource("a", null));
+        LazyDataSource source = new LazyDataSource("a", null, dataHandler, target -> fail("not read"));
+
+        assertSame(dataHandler, source.release()); // для AttachmentsStrategy.done
+        assertThrows(IOException.class, source::getInputStream);
+    }
+
+    private static String read(LazyDataSource source) throws IOException
+    {
+        try (InputStream in = source.getInputStream())
+        {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
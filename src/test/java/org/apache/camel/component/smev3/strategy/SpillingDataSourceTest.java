@@ -0,0 +1,103 @@
+package org.apache.camel.component.smev3.strategy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpillingDataSourceTest
+{
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    public void keepsSmallAttachmentInMemory() throws IOException
+    {
+        AtomicLong messageBudget = new AtomicLong(1024 * 1024);
+        SpillingDataSource source = new SpillingDataSource("a", null, spillDirectory, 64 * 1024, messageBudget);
+        byte[] data = write(source, 1000);
+
+        assertFalse(source.isSpilled());
+        assertEquals(1024 * 1024 - 1000, messageBudget.get());
+        assertArrayEquals(data, read(source));
+
+        source.release();
+        assertEquals(1024 * 1024, messageBudget.get());
+    }
+
+    @Test
+    public void spillsAndDeletesFileOnRelease() throws IOException
+    {
+        AtomicLong messageBudget = new AtomicLong(1024 * 1024);
+        SpillingDataSource source = new SpillingDataSource("a", null, spillDirectory, 64 * 1024, messageBudget);
+        byte[] data = write(source, 200 * 1024);
+
+        assertTrue(source.isSpilled());
+        assertEquals(1024 * 1024, messageBudget.get()); // память возвращена при переносе в файл
+        File file = source.getFile();
+        assertArrayEquals(data, read(source));
+        assertArrayEquals(data, read(source));
+
+        source.release();
+        assertFalse(file.exists());
+        assertThrows(IOException.class, source::getInputStream);
+    }
+
+    @Test
+    public void spillsWhenMessageBudgetIsExhausted() throws IOException
+    {
+        AtomicLong messageBudget = new AtomicLong(1500);
+        SpillingDataSource first = new SpillingDataSource("a", null, spillDirectory, 64 * 1024, messageBudget);
+        SpillingDataSource second = new SpillingDataSource("b", null, spillDirectory, 64 * 1024, messageBudget);
+        write(first, 1000);
+        byte[] data = write(second, 1000);
+
+        assertFalse(first.isSpilled());
+        assertTrue(second.isSpilled());
+        assertArrayEquals(data, read(second));
+
+        first.release();
+        second.release();
+        assertEquals(1500, messageBudget.get());
+    }
+
+    @Test
+    public void releaseIsIdempotent() throws IOException
+    {
+        AtomicLong messageBudget = new AtomicLong(1024 * 1024);
+        SpillingDataSource source = new SpillingDataSource("a", null, spillDirectory, 64 * 1024, messageBudget);
+        write(source, 1000);
+
+        source.release();
+        source.release();
+        assertEquals(1024 * 1024, messageBudget.get());
+        assertThrows(IOException.class, source::getInputStream);
+    }
+
+    private static byte[] write(SpillingDataSource source, int size) throws IOException
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        try (OutputStream out = source.getOutputStream())
+        {
+            out.write(data);
+        }
+        return data;
+    }
+
+    private static byte[] read(SpillingDataSource source) throws IOException
+    {
+        try (InputStream in = source.getInputStream())
+        {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.apache.camel.component.smev3.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.voskhod.smev.client.api.services.transport.configuration.LargeAttachmentTransportConfiguration;
+import ru.voskhod.smev.client.api.types.exception.SMEVRuntimeException;
+import ru.voskhod.smev.client.api.types.message.attachment.LargeAttachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Передача через встроенный FTP сервер, как в FTPTransportBenchmark
+public class ApacheFTPTransportTest
+{
+    private static final String LOGIN = "smev";
+    private static final String PASSWORD = "smev";
+    private static final String FILE_NAME = "attachment.bin";
+    private static final int SEGMENTS = 4;
+
+    @TempDir
+    Path home;
+
+    @TempDir
+    Path downloads;
+
+    private FtpServer server;
+    private FTPClientPool pool;
+    private LargeAttachmentTransportConfiguration config;
+    private Smev3Metrics metrics;
+    private ApacheFTPTransport transport;
+    private LargeAttachment.TransportDetails transportDetails;
+    private ExecutorService segmentsExecutor;
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        BaseUser user = new BaseUser();
+        user.setName(LOGIN);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(home.toString());
+        user.setAuthorities(Arrays.<Authority>asList(new WritePermission(), new ConcurrentLoginPermission(0, 0)));
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setPort(port);
+        serverFactory.addListener("default", listenerFactory.createListener());
+        serverFactory.setUserManager(new PropertiesUserManagerFactory().createUserManager());
+        serverFactory.getUserManager().save(user);
+        server = serverFactory.createServer();
+        server.start();
+
+        String address = "localhost:" + port;
+        pool = new FTPClientPool(8, 60000, 1000);
+        config = new LargeAttachmentTransportConfiguration()
+        {
+            public String getAddress()
+            {
+                return address;
+            }
+
+            public String getLogin()
+            {
+                return LOGIN;
+            }
+
+            public String getPass()
+            {
+                return PASSWORD;
+            }
+
+            public int getMaxAttempts()
+            {
+                return 3;
+            }
+
+            public int getTimeout()
+            {
+                return 5000;
+            }
+        };
+        metrics = new Smev3Metrics(new SimpleMeterRegistry(), "test", "1.3");
+        transport = new ApacheFTPTransport(config, pool, metrics);
+        transportDetails = new LargeAttachment.TransportDetails(LOGIN, PASSWORD);
+        segmentsExecutor = Executors.newFixedThreadPool(SEGMENTS);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        segmentsExecutor.shutdownNow();
+        pool.close();
+        server.stop();
+    }
+
+    @Test
+    public void uploadsAndDownloads() throws Exception
+    {
+        byte[] content = content(1024 * 1024);
+        UUID uuid = UUID.randomUUID();
+        transport.upload(uuid, FILE_NAME, transportDetails, new ByteArrayInputStream(content));
+        assertArrayEquals(content, Files.readAllBytes(home.resolve(uuid.toString()).resolve(FILE_NAME)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transport.download(largeAttachment(uuid), out);
+        assertArrayEquals(content, out.toByteArray());
+
+        File file = downloads.resolve("download.bin").toFile();
+        transport.download(largeAttachment(uuid), file);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void resumesUpload() throws Exception
+    {
+        byte[] content = content(1024 * 1024);
+        UUID uuid = UUID.randomUUID();
+        FailingInputStream in = new FailingInputStream(new ByteArrayInputStream(content), 300 * 1024);
+        transport.upload(uuid, FILE_NAME, transportDetails, in);
+
+        assertTrue(in.failed);
+        assertEquals(content.length, in.count); // исходный поток прочитан один раз, повтор из окна
+        assertArrayEquals(content, Files.readAllBytes(home.resolve(uuid.toString()).resolve(FILE_NAME)));
+    }
+
+    @Test
+    public void resumesDownload() throws Exception
+    {
+        byte[] content = content(1024 * 1024);
+        UUID uuid = upload(content);
+        FailingOutputStream out = new FailingOutputStream(300 * 1024);
+        transport.download(largeAttachment(uuid), out);
+
+        assertTrue(out.failed);
+        assertArrayEquals(content, out.toByteArray()); // продолжена с последнего полученного байта
+    }
+
+    @Test
+    public void doesNotRetryPermanentFailure()
+    {
+        long start = System.currentTimeMillis();
+        assertThrows(SMEVRuntimeException.class, () -> transport.download(largeAttachment(UUID.randomUUID()), new ByteArrayOutputStream()));
+        assertTrue(System.currentTimeMillis() - start < 1000); // 550 без задержки повтора
+    }
+
+    @Test
+    public void downloadsInSegments() throws Exception
+    {
+        byte[] content = content(1024 * 1024 + 3); // размер не кратен числу частей
+        UUID uuid = upload(content);
+        File file = downloads.resolve("download.bin").toFile();
+        Files.write(file.toPath(), content(2 * 1024 * 1024)); // прежнее содержимое файла отбрасывается
+
+        new ApacheFTPTransport(config, pool, metrics, SEGMENTS, 0, segmentsExecutor).download(largeAttachment(uuid), file);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void downloadsSmallFileInOneSession() throws Exception
+    {
+        byte[] content = content(SEGMENTS - 1);
+        UUID uuid = upload(content);
+        File file = downloads.resolve("small.bin").toFile();
+        new ApacheFTPTransport(config, pool, metrics, SEGMENTS, 0, segmentsExecutor).download(largeAttachment(uuid), file);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+
+        content = content(64 * 1024);
+        uuid = upload(content);
+        new ApacheFTPTransport(config, pool, metrics, SEGMENTS, 1024 * 1024, segmentsExecutor).download(largeAttachment(uuid), file);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void segmentedDownloadOfMissingFileFails()
+    {
+        File file = downloads.resolve("missing.bin").toFile();
+        ApacheFTPTransport segmented = new ApacheFTPTransport(config, pool, metrics, SEGMENTS, 0, segmentsExecutor);
+        assertThrows(SMEVRuntimeException.class, () -> segmented.download(largeAttachment(UUID.randomUUID()), file));
+    }
+
+    private UUID upload(byte[] content) throws IOException
+    {
+        UUID uuid = UUID.randomUUID();
+        Files.createDirectories(home.resolve(uuid.toString()));
+        Files.write(home.resolve(uuid.toString()).resolve(FILE_NAME), content);
+        return uuid;
+    }
+
+    private LargeAttachment largeAttachment(UUID uuid)
+    {
+        return new LargeAttachment("application/octet-stream", null, null, uuid, null, null, transportDetails, uuid + "/" + FILE_NAME);
+    }
+
+    private static byte[] content(int size)
+    {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    // Однократная ошибка чтения после failAt байт
+    private static final class FailingInputStream extends FilterInputStream
+    {
+        private final long failAt;
+        private long count;
+        private boolean failed;
+
+        private FailingInputStream(InputStream in, long failAt)
+        {
+            super(in);
+            this.failAt = failAt;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if( ! failed && count + len > failAt)
+            {
+                failed = true;
+                throw new IOException("read failure at " + count);
+            }
+
+            int n = super.read(b, off, len);
+            if(n > 0)
+                count += n;
+            return n;
+        }
+    }
+
+    // Однократная ошибка записи после failAt байт
+    private static final class FailingOutputStream extends OutputStream
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final long failAt;
+        private boolean failed;
+
+        private FailingOutputStream(long failAt)
+        {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if( ! failed && out.size() + len > failAt)
+            {
+                failed = true;
+                throw new IOException("write failure at " + out.size());
+            }
+            out.write(b, off, len);
+        }
+
+        private byte[] toByteArray()
+        {
+            return out.toByteArray();
+        }
+    }
+}
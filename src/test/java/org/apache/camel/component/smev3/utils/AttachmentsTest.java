@@ -0,0 +1,98 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.attachment.AttachmentMessage;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AttachmentsTest
+{
+    private static final byte[] CONTENT = "attachment content".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path source;
+
+    @TempDir
+    Path target;
+
+    private CamelContext camelContext;
+
+    @BeforeEach
+    public void setUp()
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void savesIntoOwnDirectory() throws Exception
+    {
+        Path file = source.resolve("attachment.bin");
+        Files.write(file, CONTENT);
+
+        Attachments.saveAttachments(source.toString(), exchange(file), true);
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+
+        Attachments.saveAttachments(source.toString(), exchange(file), false);
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+        assertEquals(1, files(source));
+    }
+
+    @Test
+    public void linkReplacesExistingTarget() throws Exception
+    {
+        Path file = source.resolve("attachment.bin");
+        Files.write(file, CONTENT);
+        Files.write(target.resolve("attachment.bin"), "previous".getBytes(StandardCharsets.UTF_8));
+
+        Attachments.saveAttachments(target.toString(), exchange(file), true);
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.resolve("attachment.bin")));
+        assertEquals(1, files(target)); // временная ссылка не остается
+    }
+
+    @Test
+    public void transferToSameFile() throws Exception
+    {
+        Path file = source.resolve("attachment.bin");
+        Files.write(file, CONTENT);
+
+        Attachments.transfer(new DataHandler(new FileDataSource(file.toFile())), new DataHandler(new FileDataSource(file.toFile())));
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+    }
+
+    private Exchange exchange(Path file)
+    {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn(AttachmentMessage.class).addAttachment(file.getFileName().toString(), new DataHandler(new FileDataSource(file.toFile())));
+        return exchange;
+    }
+
+    private static long files(Path directory) throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory))
+        {
+            return paths.count();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdempotentStoreTest
+{
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void reloadsEntries() throws IOException
+    {
+        Path file = directory.resolve("store").resolve("idempotent.txt");
+        try (IdempotentStore store = new IdempotentStore(100, TTL, file))
+        {
+            store.put("a", true);
+            store.put("b", false);
+            assertEquals(Boolean.TRUE, store.get("a"));
+        }
+
+        try (IdempotentStore store = new IdempotentStore(100, TTL, file))
+        {
+            assertEquals(2, store.size());
+            assertEquals(Boolean.TRUE, store.get("a"));
+            assertEquals(Boolean.FALSE, store.get("b"));
+            assertNull(store.get("c"));
+        }
+    }
+
+    @Test
+    public void skipsExpiredAndInvalidLines() throws IOException
+    {
+        Path file = directory.resolve("idempotent.txt");
+        long now = System.currentTimeMillis();
+        Files.write(file, (now - 2 * TTL + "\ttrue\texpired\n"
+                + "not a number\ttrue\tinvalid\n"
+                + now + "\tfalse\tvalid\n"
+                + now + "\ttr").getBytes(StandardCharsets.UTF_8)); // оборванная последняя строка
+
+        try (IdempotentStore store = new IdempotentStore(100, TTL, file))
+        {
+            assertEquals(1, store.size());
+            assertNull(store.get("expired"));
+            assertNull(store.get("invalid"));
+            assertEquals(Boolean.FALSE, store.get("valid"));
+        }
+        assertEquals(1, lines(file).size()); // файл переписан при открытии
+    }
+
+    @Test
+    public void compactsFile() throws IOException
+    {
+        Path file = directory.resolve("idempotent.txt");
+        try (IdempotentStore store = new IdempotentStore(10, TTL, file))
+        {
+            for(int i = 0; i < 100; i++)
+            {
+                store.put("id" + i, true);
+                assertTrue(lines(file).size() <= 2 * 10 + 1);
+            }
+        }
+
+        try (IdempotentStore store = new IdempotentStore(10, TTL, file))
+        {
+            assertEquals(Boolean.TRUE, store.get("id99"));
+            assertNull(store.get("id0"));
+        }
+    }
+
+    @Test
+    public void keepsWritingWhenCompactionFails() throws IOException
+    {
+        Path file = directory.resolve("idempotent.txt");
+        Path temp = directory.resolve("idempotent.txt.tmp");
+        try (IdempotentStore store = new IdempotentStore(10, TTL, file))
+        {
+            // временный файл не может быть создан
+            Files.createDirectory(temp);
+            Files.write(temp.resolve("busy"), new byte[0]);
+
+            for(int i = 0; i < 50; i++)
+                store.put("id" + i, true);
+            assertEquals(50, lines(file).size()); // запись продолжается в прежний файл
+
+            Files.delete(temp.resolve("busy"));
+            Files.delete(temp);
+            for(int i = 50; i < 60; i++)
+                store.put("id" + i, true);
+            assertTrue(lines(file).size() < 50); // повторная попытка после следующих maximumSize строк
+            assertFalse(Files.exists(temp));
+
+            store.put("last", false);
+        }
+
+        try (IdempotentStore store = new IdempotentStore(10, TTL, file))
+        {
+            assertEquals(Boolean.TRUE, store.get("id59"));
+            assertEquals(Boolean.FALSE, store.get("last"));
+        }
+    }
+
+    @Test
+    public void putAfterCloseIsNotWritten() throws IOException
+    {
+        Path file = directory.resolve("idempotent.txt");
+        IdempotentStore store = new IdempotentStore(10, TTL, file);
+        store.put("a", true);
+        store.close();
+        store.put("b", true);
+        assertEquals(Boolean.TRUE, store.get("b")); // остается в памяти
+        assertEquals(1, lines(file).size());
+    }
+
+    @Test
+    public void worksWithoutFile() throws IOException
+    {
+        try (IdempotentStore store = new IdempotentStore(10, TTL, null))
+        {
+            store.put("a", false);
+            assertEquals(Boolean.FALSE, store.get("a"));
+        }
+    }
+
+    private static List<String> lines(Path file) throws IOException
+    {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+}
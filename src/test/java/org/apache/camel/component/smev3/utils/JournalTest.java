@@ -0,0 +1,210 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest
+{
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void recoversPendingRecordsInOrder() throws IOException
+    {
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            Journal.Record first = journal.append(bytes("first"));
+            Journal.Record second = journal.append(bytes("second"));
+            journal.append(bytes("third"));
+            journal.complete(second);
+            assertEquals(2, journal.pending());
+            assertEquals("first", string(journal.read(first)));
+        }
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            List<Journal.Record> recovered = journal.recovered();
+            assertEquals(2, journal.pending());
+            assertEquals(List.of("first", "third"), strings(journal, recovered));
+            assertTrue(journal.recovered().isEmpty()); // возвращаются один раз
+
+            Journal.Record fourth = journal.append(bytes("fourth"));
+            assertTrue(fourth.getId() > recovered.get(1).getId());
+            for(Journal.Record record : recovered)
+                journal.complete(record);
+        }
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("fourth"), strings(journal, journal.recovered()));
+        }
+    }
+
+    @Test
+    public void truncatesTornRecord() throws IOException
+    {
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            journal.append(bytes("complete"));
+            journal.append(bytes("torn record"));
+        }
+
+        Path segment = segments().get(0);
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.truncate(size - 3); // сбой во время записи последней записи
+        }
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("complete"), strings(journal, journal.recovered()));
+            assertTrue(Files.size(segment) < size - 3); // оборванная запись отброшена целиком
+            journal.append(bytes("after"));
+        }
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("complete", "after"), strings(journal, journal.recovered()));
+        }
+    }
+
+    @Test
+    public void truncatesRecordWithInvalidChecksum() throws IOException
+    {
+        long offset;
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            journal.append(bytes("valid"));
+            offset = Files.size(segments().get(0));
+            journal.append(bytes("corrupted"));
+        }
+
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.wrap(new byte[] { 'X' }), channel.size() - 1);
+        }
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("valid"), strings(journal, journal.recovered()));
+            assertEquals(offset, Files.size(segments().get(0)));
+        }
+    }
+
+    @Test
+    public void truncatesTrailingGarbage() throws IOException
+    {
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            journal.append(bytes("valid"));
+        }
+
+        long size = Files.size(segments().get(0));
+        Files.write(segments().get(0), new byte[] { 0, 0, 0 }, StandardOpenOption.APPEND);
+
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("valid"), strings(journal, journal.recovered()));
+            assertEquals(size, Files.size(segments().get(0)));
+        }
+    }
+
+    @Test
+    public void deletesCompletedSegments() throws IOException
+    {
+        try (Journal journal = open(64))
+        {
+            List<Journal.Record> records = new ArrayList<>();
+            for(int i = 0; i < 10; i++)
+                records.add(journal.append(new byte[100])); // каждая запись в новом сегменте
+            assertTrue(segments().size() >= 10);
+
+            for(Journal.Record record : records)
+                journal.complete(record);
+            assertTrue(segments().size() <= 2);
+            assertEquals(0, journal.pending());
+        }
+
+        try (Journal journal = open(64))
+        {
+            assertTrue(journal.recovered().isEmpty());
+        }
+    }
+
+    @Test
+    public void rejectsWritesAfterClose() throws IOException
+    {
+        Journal journal = open(SEGMENT_SIZE);
+        Journal.Record record = journal.append(bytes("record"));
+        journal.close();
+        journal.close();
+
+        List<Path> segments = segments();
+        assertThrows(IOException.class, () -> journal.append(bytes("late")));
+        assertThrows(IOException.class, () -> journal.complete(record));
+        assertEquals(segments, segments()); // новый сегмент не создан
+
+        try (Journal reopened = open(SEGMENT_SIZE))
+        {
+            assertEquals(List.of("record"), strings(reopened, reopened.recovered()));
+        }
+    }
+
+    @Test
+    public void directoryIsLocked() throws IOException
+    {
+        try (Journal journal = open(SEGMENT_SIZE))
+        {
+            assertThrows(IOException.class, () -> open(SEGMENT_SIZE));
+        }
+        open(SEGMENT_SIZE).close(); // блокировка снята при закрытии
+    }
+
+    private Journal open(long segmentSize) throws IOException
+    {
+        return new Journal(directory, Journal.Sync.Always, 0, segmentSize);
+    }
+
+    private List<Path> segments() throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory))
+        {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".journal")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> strings(Journal journal, List<Journal.Record> records) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        for(Journal.Record record : records)
+            result.add(string(journal.read(record)));
+        return result;
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value)
+    {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package org.apache.camel.component.smev3.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplayInputStreamTest
+{
+    private static final int WINDOW = 1000;
+
+    @Test
+    public void rewindsWithinWindow() throws IOException
+    {
+        byte[] data = data(10000);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data), WINDOW);
+        read(in, 5000);
+
+        assertFalse(in.rewind(5001)); // еще не прочитано
+        assertFalse(in.rewind(5000 - WINDOW - 1)); // вышло за пределы окна
+        assertEquals(5000, in.getPosition());
+
+        assertTrue(in.rewind(5000 - WINDOW)); // начало окна
+        assertArrayEquals(Arrays.copyOfRange(data, 5000 - WINDOW, data.length), read(in, data.length - 5000 + WINDOW));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void rewindsToReadPosition() throws IOException
+    {
+        byte[] data = data(3000);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data), WINDOW);
+        read(in, 1500);
+
+        assertTrue(in.rewind(1500)); // конец окна
+        assertEquals(1500, in.getPosition());
+        assertArrayEquals(Arrays.copyOfRange(data, 1500, data.length), read(in, data.length - 1500));
+    }
+
+    @Test
+    public void rewindsToStartBeforeWindowIsFilled() throws IOException
+    {
+        byte[] data = data(3000);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data), WINDOW);
+        assertTrue(in.rewind(0));
+        read(in, WINDOW);
+
+        assertFalse(in.rewind(-1));
+        assertTrue(in.rewind(0));
+        assertArrayEquals(data, read(in, data.length));
+
+        assertFalse(in.rewind(0));
+        assertTrue(in.rewind(data.length - WINDOW));
+    }
+
+    @Test
+    public void replaysAcrossBufferBoundary() throws IOException
+    {
+        byte[] data = data(2500);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data), WINDOW);
+        read(in, 700);
+        read(in, 1100); // окно заполняется с переходом через конец буфера
+
+        assertTrue(in.rewind(1800 - WINDOW));
+        assertArrayEquals(Arrays.copyOfRange(data, 800, 1800), read(in, WINDOW));
+        assertTrue(in.rewind(1799));
+        assertEquals(data[1799] & 0xFF, in.read());
+        assertArrayEquals(Arrays.copyOfRange(data, 1800, data.length), read(in, data.length - 1800));
+    }
+
+    @Test
+    public void singleByteReads() throws IOException
+    {
+        byte[] data = data(1500);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data), WINDOW);
+        for(int i = 0; i < data.length; i++)
+            assertEquals(data[i] & 0xFF, in.read());
+        assertEquals(-1, in.read());
+
+        assertTrue(in.rewind(data.length - 1));
+        assertEquals(data[data.length - 1] & 0xFF, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    private static byte[] read(ReplayInputStream in, int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        int off = 0;
+        while(off < length)
+        {
+            int n = in.read(result, off, Math.min(length - off, 300));
+            if(n < 0)
+                throw new IOException("unexpected end of stream");
+            off += n;
+        }
+        return result;
+    }
+
+    private static byte[] data(int size)
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}